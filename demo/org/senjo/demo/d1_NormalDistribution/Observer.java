@@ -11,6 +11,7 @@ import static org.senjo.demo.d1_NormalDistribution.Starter.UNIT_COUNT;
 import org.senjo.annotation.Synchronized;
 import org.senjo.conveyor.Conveyor;
 import org.senjo.conveyor.ConveyorView;
+import org.senjo.conveyor.Stripes;
 
 /** Наблюдатель запускается в отдельном конвейере, чтобы не испытывать перегрузку
  * основного конвейера. Он принимает данные от всех задач и строит по ним статистику,
@@ -23,22 +24,20 @@ class Observer extends org.senjo.conveyor.SoloTask<Unit> {
 	public int finishedUnitCount = 0;
 	public Unit[] finishedUnit = new Unit[Starter.UNIT_COUNT];
 	public static final Observer instance = new Observer();
+	/** Задачи отчитываются о завершении в полосу своей линии, а наблюдатель сливает полосы
+	 * одним этапом. Так завершающиеся задачи не толкаются на цепочке вхождений наблюдателя. */
+	private final Stripes<Unit> finished = new Stripes<>(this, $Collect);
 
 	private Observer() { super("Observer");
 		regular(Second); } // Запустить отображение статистики по таймеру каждую секунду
 
 	@Override protected int work(int stage) { switch (stage) {
-	case $Signal: {
-		int count = ++finishedUnitCount;
-		finishedUnit[count-1] = target();
-//XXX Реализовать и испытать команду return $Overview. Она должна добавить вхождение в начало
-		switch (count) {
-		case     1       : call($Zeroview); break;
-		case UNIT_COUNT/2: call($Halfview); break;
-		case UNIT_COUNT  : call($Overview); break; }
-		return $Default$; }
+	case $Collect:
+		finished.drain(this::finished);
+		return $Default$;
 
 	case $Timer: {
+		finished.drain(this::finished);
 		int count = finishedUnitCount;
 		if (count == 0) return $Default$;
 		// Вывести сообщение с количеством завершённых задач в журнал
@@ -82,8 +81,18 @@ class Observer extends org.senjo.conveyor.SoloTask<Unit> {
 
 	default: return $Unknown$; } }
 
+	private void finished(Unit unit) {
+		int count = ++finishedUnitCount;
+		finishedUnit[count-1] = unit;
+//XXX Реализовать и испытать команду return $Overview. Она должна добавить вхождение в начало
+		switch (count) {
+		case     1       : call($Zeroview); break;
+		case UNIT_COUNT/2: call($Halfview); break;
+		case UNIT_COUNT  : call($Overview); break; }
+	}
+
 	@Synchronized public static final void push(Unit unit) {
-		instance.handle(unit, $Signal); }
+		instance.finished.push(unit); }
 
 //XXX Перетащить идею в Chibi в виде эксперимента, отсюда убрать
 //	private void go() {
@@ -100,6 +109,7 @@ class Observer extends org.senjo.conveyor.SoloTask<Unit> {
 	private static final int $Halfview = 2;
 	private static final int $Overview = 3;
 	private static final int $Closing  = 4;
+	private static final int $Collect  = 5;
 }
 
 
@@ -117,6 +127,7 @@ class StatusStart implements IStatus {
 /* Стоит позаботиться об отсутствии конкуренции:
 1. Можно сделать семафор, который блокирует и возвращает один из каналов и возвращает его номер. Так можно создать несколько очередей и наполнять их параллельно.
 2. Можно расширить линии и прямо в них записать очереди, которые вообще не придётся синхронизировать при обращении из задачи, но придётся глушить всё при чтении.
+   Сделано: см. Stripes, наблюдатель сливает полосы линий по требованию и по таймеру.
 3. Писать отчёт только в момент завершения работы задачи и только о завершении, а статистику потом соберёт сам Наблюдатель из задач.
 #. Пока забить и сделать чтобы работало хотя бы с сильной конкуренцией.
 
@@ -0,0 +1,118 @@
+﻿/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.demo.d2_SelectLoopback;
+
+import static java.nio.channels.SelectionKey.*;
+import static org.senjo.support.Log.Level.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.Pipe;
+import org.senjo.conveyor.Conveyor;
+import org.senjo.conveyor.MultiConveyor;
+import org.senjo.conveyor.Task;
+import org.senjo.support.LogConsole;
+
+/** Проверка хранителя выборки на петле {@link Pipe}. Одна задача пишет в трубу известную
+ * последовательность байт и читает её с другого конца, оба направления ждут готовности
+ * канала только через {@link #select(java.nio.channels.SelectableChannel, int, int)},
+ * линии конвейера при этом никогда не блокируются. Каждый прочитанный байт сверяется
+ * с ожидаемым, по окончании пишется итог и конвейеры завершаются.
+ * <p/>Перед этим проверяется, что блокирующий канал отвергается сразу при заявке интереса,
+ * а не теряется в потоке хранителя.
+ * 
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11 */
+public class Starter extends Task<Object> {
+	/** Сколько байт передать через трубу. */
+	public static final int TOTAL = 16 << 20;
+
+	static final MultiConveyor conveyor = new MultiConveyor("Conveyor", 4);
+
+	private final Pipe pipe = Pipe.open();
+	private final ByteBuffer out = ByteBuffer.allocate(8192);
+	private final ByteBuffer in  = ByteBuffer.allocate(8192);
+	/** Сколько байт выпущено в буфер записи и сколько прочитано и сверено. */
+	private long produced, consumed;
+	private long tick;
+
+	public static void main(String[] args) throws IOException {
+		LogConsole.initDefault(Hint);
+		new Starter(); }
+
+	private Starter() throws IOException { super(conveyor);
+		pipe.sink  ().configureBlocking(false);
+		pipe.source().configureBlocking(false);
+		out.limit(0); // Буфер записи пуст до первого заполнения
+		start(); }
+
+	@Override protected int work(int stage) throws Exception { switch (stage) {
+	case $Start:
+		checkBlocking();
+		tick = System.nanoTime();
+		select(pipe.sink  (), OP_WRITE, $Write);
+		select(pipe.source(), OP_READ , $Read );
+		return $Default$;
+
+	case $Write: {
+		Pipe.SinkChannel sink = pipe.sink();
+		do {
+			if (!out.hasRemaining()) {
+				// Всё выпущено: закрытие приёмника даст читателю конец потока
+				if (produced == TOTAL) { sink.close(); return $Default$; }
+				fill(); }
+			sink.write(out);
+		} while (!out.hasRemaining());
+		select(sink, OP_WRITE, $Write); // Труба заполнена, ждать места
+		return $Default$; }
+
+	case $Read: {
+		Pipe.SourceChannel source = pipe.source();
+		int count;
+		while ((count = source.read(in)) > 0) {
+			in.flip();
+			while (in.hasRemaining()) if (in.get() != pattern(consumed++)) {
+				log().warnEx("Данные трубы искажены на байте ").add(consumed - 1).end();
+				return finish(); }
+			in.clear(); }
+		if (count == 0) { select(source, OP_READ, $Read); return $Default$; }
+		// Конец потока
+		if (consumed != TOTAL) log().warnEx("Прочитано только ").add(consumed)
+				.add(" байт из ").add(TOTAL).end();
+		else log().infoEx("Через трубу передано и сверено ").add(consumed)
+				.add(" байт за ").tick(System.nanoTime() - tick).end();
+		return finish(); }
+
+	default: return $Unknown$; } }
+
+	/** Блокирующий канал нельзя отдать хранителю выборки, отказ должен прийти сразу. */
+	private void checkBlocking() throws IOException {
+		Pipe check = Pipe.open();
+		try {
+			select(check.source(), OP_READ, $Read);
+			log().warn("Блокирующий канал принят хранителем выборки");
+		} catch (IllegalBlockingModeException ex) {
+			log().info("Блокирующий канал отвергнут при заявке интереса");
+		} finally { check.sink().close(); check.source().close(); } }
+
+	private void fill() {
+		out.clear();
+		while (out.hasRemaining() && produced != TOTAL) out.put(pattern(produced++));
+		out.flip(); }
+
+	private int finish() throws IOException {
+		pipe.source().close();
+		Conveyor.shutdownAll();
+		return $Finish$; }
+
+	/** Ожидаемый байт последовательности по его номеру. */
+	private static byte pattern(long index) { return (byte)(index * 31 + (index >>> 9)); }
+
+	private static final int $Write = 1;
+	private static final int $Read  = 2;
+}
@@ -0,0 +1,86 @@
+﻿/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.demo.d3_BroadcastBackpressure;
+
+import static org.senjo.support.Log.Level.*;
+import org.senjo.conveyor.BroadcastStorage;
+import org.senjo.conveyor.Conveyor;
+import org.senjo.conveyor.MultiConveyor;
+import org.senjo.conveyor.Task;
+import org.senjo.support.LogConsole;
+
+/** Проверка заполнения кольца {@link BroadcastStorage}. Писатель выпускает числа быстрее,
+ * чем медленный читатель успевает их разбирать, поэтому кольцо многократно заполняется.
+ * Каждый раз писатель получает отказ {@link BroadcastStorage#offer(Object,
+ * org.senjo.conveyor.Unit, int)} прямо из своего этапа и засыпает до пробуждения
+ * читателем. Читатель сверяет, что числа пришли все и по порядку, и завершает конвейеры.
+ * 
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11 */
+public class Starter extends Task<Object> {
+	/** Сколько чисел выпустить через кольцо. */
+	public static final int TOTAL = 100_000;
+
+	static final MultiConveyor conveyor = new MultiConveyor("Conveyor", 4);
+
+	private final BroadcastStorage<Integer> storage = new BroadcastStorage<>(16);
+	/** Следующее число для выпуска и сколько раз кольцо оказалось полным. */
+	private int produced, full;
+
+	public static void main(String[] args) {
+		LogConsole.initDefault(Hint);
+		new Starter(); }
+
+	private Starter() { super(conveyor);
+		new Reader(storage);
+		start(); }
+
+	@Override protected int work(int stage) throws Exception { switch (stage) {
+	case $Start: case $Write:
+		while (produced != TOTAL) {
+			// Кольцо полно: писатель будет разбужен этапом $Write, когда читатель отстанет
+			if (!storage.offer(produced, this, $Write)) { ++full; return $Default$; }
+			++produced; }
+		log().infoEx("Писатель выпустил ").add(TOTAL).add(" чисел, кольцо было полным ")
+				.add(full).add(" раз").end();
+		return $Finish$;
+
+	default: return $Unknown$; } }
+
+	/** Медленный читатель: разбирает по одному числу за этап. */
+	static class Reader extends Task<Object> {
+		private final BroadcastStorage.Reader<Integer> reader;
+		private int consumed;
+
+		Reader(BroadcastStorage<Integer> storage) { super(conveyor);
+			reader = storage.subscribe(this, $Read); }
+
+		@Override protected int work(int stage) throws Exception { switch (stage) {
+		case $Read:
+			Integer value = reader.take();
+			if (value == null) return $Default$;
+			if (value != consumed++) {
+				log().warnEx("Ожидалось число ").add(consumed - 1).add(", пришло ")
+						.add(value).end();
+				return finish(); }
+			if (consumed == TOTAL) {
+				log().infoEx("Читатель получил все ").add(TOTAL).add(" чисел по порядку").end();
+				return finish(); }
+			return $Default$;
+
+		default: return $Unknown$; } }
+
+		private int finish() {
+			reader.cancel();
+			Conveyor.shutdownAll();
+			return $Finish$; }
+	}
+
+	private static final int $Write = 1;
+	private static final int $Read  = 2;
+}
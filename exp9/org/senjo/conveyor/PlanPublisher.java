@@ -0,0 +1,145 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.senjo.annotation.*;
+
+/** Поставщик Reactive Streams ({@link Flow.Publisher}), которым управляет задача. Задача
+ * выпускает элементы методом {@link #emit(Object)} только пока у подписчика есть спрос.
+ * Когда спрос исчерпан, задача просто перестаёт выпускать, а ближайший запрос подписчика
+ * разбудит её указанным этапом. Так производитель никогда не опережает потребителя.
+ * <p/>Поставщик одноадресный: допускается один подписчик, остальным отказывается.
+ * Методы выпуска вызываются только из этапов задачи владельца.
+ * <p/>Сигналы подписчику идут строго последовательно (правило 1.3): их подаёт только
+ * держатель права {@link #wip}. Завершение, выставленное из чужого потока или до подписки,
+ * запоминается и доставляется ближайшим держателем права.
+ * <p/>Требует Java 9, поэтому лежит в отдельных исходниках exp9: они не входят в сборку
+ * на Java 8 и собираются своим проектом conveyor9 (Java 9) поверх проекта conveyor.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public final class PlanPublisher<Target> implements Flow.Publisher<Target> {
+	private final Plan<?> owner;
+	private final int     stage;
+	private final AtomicLong demand = new AtomicLong();
+	/** Право подавать сигналы подписчику: 0 — свободно, иначе держатель права плюс число
+	 * пропущенных попыток других потоков, которые держатель отработает перед выходом. */
+	private final AtomicInteger wip = new AtomicInteger();
+	/** Выставленное завершение потока: {@link #Complete} или ошибка. Выставляется один раз. */
+	private final AtomicReference<Object> terminal = new AtomicReference<>();
+	/** Подписчик, которому уже отправлен onSubscribe. */
+	private volatile Flow.Subscriber<? super Target> subscriber;
+	private boolean subscribed;
+	private volatile boolean canceled;
+	/** Завершение доставлено подписчику, меняется только держателем права {@link #wip}. */
+	private boolean done;
+
+	/** @param owner — задача производитель;
+	 * @param stage — этап задачи, который вызывается при появлении спроса. */
+	public PlanPublisher(@NotNull Plan<?> owner, int stage) {
+		this.owner = owner; this.stage = stage; }
+
+	@Override public void subscribe(@NotNull Flow.Subscriber<? super Target> subscriber) {
+		synchronized (this) {
+			if (subscribed) {
+				subscriber.onSubscribe(Rejected);
+				subscriber.onError(new IllegalStateException("Publisher has a subscriber"));
+				return; }
+			subscribed = true; }
+		subscriber.onSubscribe(new Subscription());
+		// Только теперь подписчик может получать остальные сигналы
+		this.subscriber = subscriber;
+		if (enter()) leave();
+		// Спрос, запрошенный внутри onSubscribe, не мог разбудить задачу до публикации
+		if (demand.get() != 0) wakeup(); }
+
+	/** Текущий спрос подписчика. */
+	public long demand() { return demand.get(); }
+
+	/** Выпустить элемент, если есть спрос.
+	 * @return false — спроса нет или поток завершён, элемент не выпущен; задача будет
+	 *         разбужена этапом, когда спрос появится. */
+	public boolean emit(@NotNull Target item) {
+		Flow.Subscriber<? super Target> subscriber = this.subscriber;
+		if (subscriber == null || isCanceled() || demand.get() == 0) return false;
+		if (!enter()) return false; // Держатель права разбудит задачу после выхода
+		try {
+			if (done || canceled) return false;
+			long value;
+			do {
+				value = demand.get();
+				if (value == 0) return false;
+			} while (value != Long.MAX_VALUE && !demand.compareAndSet(value, value - 1));
+			subscriber.onNext(item);
+			return true;
+		} finally { leave(); } }
+
+	/** Успешно завершить поток. Если подписчика ещё нет, то он получит завершение сразу
+	 * после подписки. */
+	public void complete() { terminate(Complete); }
+
+	/** Завершить поток с ошибкой. */
+	public void fail(@NotNull Throwable error) { terminate(error); }
+
+	/** Подписчик отменил подписку или поток завершён. */
+	public boolean isCanceled() { return canceled || terminal.get() != null; }
+
+	private final void terminate(Object signal) {
+		if (terminal.compareAndSet(null, signal) && enter()) leave(); }
+
+	private final void wakeup() { owner.appendEntryAndPushQueue(new Entry.Call(stage)); }
+
+	/** Захватить право подавать сигналы. Неудачная попытка остаётся в счётчике, и её
+	 * отработает текущий держатель права. */
+	private final boolean enter() { return wip.getAndIncrement() == 0; }
+
+	/** Вернуть право подавать сигналы, перед этим доставив выставленное завершение. Если
+	 * за время владения кто-то пытался захватить право, то задача будит себя, чтобы
+	 * повторить неудавшийся выпуск. */
+	private final void leave() {
+		int missed = 1;
+		boolean contended = false;
+		for (;;) {
+			Flow.Subscriber<? super Target> subscriber = this.subscriber;
+			Object terminal = this.terminal.get();
+			if (!done && subscriber != null && terminal != null) {
+				done = true;
+				if (!canceled) try {
+					if (terminal == Complete) subscriber.onComplete();
+					else subscriber.onError((Throwable)terminal);
+				} catch (RuntimeException ex) {
+					canceled = true; } } // Подписчик нарушил правило 2.13
+			if ((missed = wip.addAndGet(-missed)) == 0) break;
+			contended = true; }
+		if (contended && !done && !canceled && demand.get() != 0) wakeup(); }
+
+	private final class Subscription implements Flow.Subscription {
+		@Override public void request(long count) {
+			if (isCanceled()) return;
+			if (count <= 0) {
+				fail(new IllegalArgumentException("Request must be positive: " + count));
+				return; }
+			long prev = demand.getAndAccumulate( count,
+					(value, add) -> value + add < 0 ? Long.MAX_VALUE : value + add );
+			// Спрос появился, разбудить задачу
+			if (prev == 0) wakeup(); }
+
+		@Override public void cancel() { canceled = true; }
+	}
+
+	/** Метка успешного завершения в {@link #terminal}. */
+	private static final Object Complete = new Object();
+
+	private static final Flow.Subscription Rejected = new Flow.Subscription() {
+		@Override public void request(long count) { }
+		@Override public void cancel() { } };
+}
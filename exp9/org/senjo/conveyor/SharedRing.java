@@ -0,0 +1,203 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.senjo.annotation.*;
+import org.senjo.conveyor.Entry.Storage;
+
+/** Кольцевой буфер в разделяемой памяти для передачи сообщений между JVM одного хоста.
+ * Буфер лежит в отображённом в память файле, писать в него могут несколько процессов
+ * и потоков сразу, а читает один потребитель. Передача сообщения стоит пары записей
+ * в память вместо полного оборота через сокет.
+ * <p/>Кольцо состоит из ячеек фиксированного размера, у каждой ячейки свой счётчик
+ * последовательности. Писатель занимает номер через CAS общего хвоста, пишет сообщение
+ * и публикует его счётчиком ячейки; читатель видит опубликованную ячейку по её счётчику
+ * и освобождает её для следующего круга. Никаких блокировок между процессами нет.
+ * <p/>В конвейер сообщения доставляет задача {@link Pump}: она опрашивает кольцо
+ * и кладёт копии сообщений в хранилище задачи-потребителя. Опрос адаптивный: пока данные
+ * идут, задача крутится в своём этапе, а на пустом кольце засыпает таймером, удваивая паузу
+ * до заданного предела.
+ * <p/>Требует Java 9 (атомарный доступ к буферу через {@link VarHandle}), поэтому лежит
+ * в отдельных исходниках exp9: они не входят в сборку на Java 8 и собираются своим
+ * проектом conveyor9 (Java 9) поверх проекта conveyor.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public final class SharedRing implements AutoCloseable {
+	private static final VarHandle Int64 = MethodHandles.byteBufferViewVarHandle(
+			long[].class, ByteOrder.nativeOrder() );
+	private static final int Magic = 0x53524E47; // SRNG
+
+	// Раскладка заголовка, хвост и голова разнесены по разным линиям кеша
+	private static final int MagicAt = 0, CapacityAt = 4, SlotAt = 8;
+	private static final int TailAt = 64, HeadAt = 128, SlotsAt = 192;
+	/** Раскладка ячейки: счётчик последовательности, длина сообщения, сообщение. */
+	private static final int LengthAt = 8, PayloadAt = 12;
+
+	private final FileChannel      channel;
+	private final MappedByteBuffer memory;
+	private final int capacity, mask, slot, stride;
+
+	private SharedRing(FileChannel channel, MappedByteBuffer memory) {
+		this.channel = channel;
+		this.memory  = memory;
+		memory.order(ByteOrder.nativeOrder());
+		if (memory.limit() < SlotsAt || memory.getInt(MagicAt) != Magic)
+			throw new IllegalStateException("File is not a shared ring");
+		capacity = memory.getInt(CapacityAt);
+		slot     = memory.getInt(SlotAt);
+		// Обрезанный или чужой файл должен отказать сразу, а не на первом обращении к ячейке
+		if ( capacity < 2 || Integer.bitCount(capacity) != 1 || slot < 1 || stride(slot) < 0
+				|| memory.limit() < SlotsAt + (long)capacity * stride(slot) )
+			throw new IllegalStateException("Shared ring file is truncated or corrupted");
+		mask     = capacity - 1;
+		stride   = stride(slot); }
+
+	/** Создать новое кольцо в файле, существующий файл перезаписывается.
+	 * @param capacity — число ячеек, округляется вверх до степени двойки;
+	 * @param slot     — наибольший размер одного сообщения в байтах. */
+	public static SharedRing create(@NotNull Path path, int capacity, int slot)
+			throws IOException {
+		if (capacity < 2 || slot < 1)
+			throw new IllegalArgumentException("Wrong capacity or slot size");
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) size <<= 1;
+		long length = SlotsAt + (long)size * stride(slot);
+		FileChannel channel = FileChannel.open( path, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE );
+		try {
+			MappedByteBuffer memory = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+			memory.order(ByteOrder.nativeOrder());
+			memory.putInt(CapacityAt, size).putInt(SlotAt, slot);
+			for (int index = 0; index != size; ++index)
+				memory.putLong(SlotsAt + index * stride(slot), index);
+			Int64.setRelease(memory, TailAt, 0L);
+			Int64.setRelease(memory, HeadAt, 0L);
+			memory.putInt(MagicAt, Magic); // Кольцо готово, его можно открывать
+			return new SharedRing(channel, memory);
+		} catch (IOException | RuntimeException ex) { channel.close(); throw ex; } }
+
+	/** Открыть кольцо, созданное другим процессом. */
+	public static SharedRing open(@NotNull Path path) throws IOException {
+		FileChannel channel = FileChannel.open( path, StandardOpenOption.READ,
+				StandardOpenOption.WRITE );
+		try {
+			return new SharedRing( channel,
+					channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()) );
+		} catch (IOException | RuntimeException ex) { channel.close(); throw ex; } }
+
+	/** Записать сообщение — оставшиеся байты буфера, позиция буфера не меняется.
+	 * @return false — кольцо заполнено, сообщение не записано. */
+	public boolean offer(@NotNull ByteBuffer message) {
+		int length = message.remaining();
+		if (length > slot) throw new IllegalArgumentException("Message exceeds slot size");
+		long tail;
+		int  at;
+		do {
+			tail = (long)Int64.getVolatile(memory, TailAt);
+			at = SlotsAt + (int)(tail & mask) * stride;
+			long sequence = (long)Int64.getAcquire(memory, at);
+			if (sequence < tail) return false; // Читатель ещё не освободил ячейку
+			if (sequence > tail) continue;     // Номер уже занят другим писателем
+		} while (!Int64.compareAndSet(memory, TailAt, tail, tail + 1));
+
+		ByteBuffer target = memory.duplicate();
+		target.position(at + PayloadAt);
+		target.put(message.duplicate());
+		memory.putInt(at + LengthAt, length);
+		Int64.setRelease(memory, at, tail + 1); // Публикация сообщения читателю
+		return true; }
+
+	/** Прочитать следующее сообщение. Метод вызывает только единственный читатель.
+	 * @return длина сообщения, записанного в target; -1 — кольцо пусто. */
+	public int poll(@NotNull ByteBuffer target) {
+		long head = (long)Int64.getVolatile(memory, HeadAt);
+		int  at   = SlotsAt + (int)(head & mask) * stride;
+		if ((long)Int64.getAcquire(memory, at) != head + 1) return -1;
+		int length = memory.getInt(at + LengthAt);
+		ByteBuffer source = memory.duplicate();
+		source.position(at + PayloadAt).limit(at + PayloadAt + length);
+		target.put(source);
+		Int64.setRelease(memory, at, head + capacity); // Освободить ячейку на следующий круг
+		Int64.setRelease(memory, HeadAt, head + 1);
+		return length; }
+
+	/** Число ячеек кольца. */
+	public int capacity() { return capacity; }
+	/** Наибольший размер сообщения. */
+	public int slot() { return slot; }
+
+	@Override public void close() throws IOException { channel.close(); }
+
+	private static int stride(int slot) { return (PayloadAt + slot + 7) & ~7; }
+
+
+
+//======== Pump : задача доставки сообщений кольца в конвейер ============================//
+	/** Задача-насос, единственный читатель кольца. Переносит копии сообщений в хранилище
+	 * задачи-потребителя, соблюдая его ёмкость. Пока сообщения идут, насос крутится в своём
+	 * этапе до {@code burst} сообщений за раз и отдаёт линию, затем продолжает. На пустом
+	 * кольце насос сначала недолго крутится вхолостую, потом засыпает таймером, удваивая
+	 * паузу от одной миллисекунды до {@code maxPause}. */
+	public static class Pump extends Task<Object> {
+		private final SharedRing ring;
+		private final Storage<ByteBuffer> target;
+		/** Буфер чтения слота, один на всё время жизни насоса. */
+		private final ByteBuffer buffer;
+		private final int capacity, maxPause;
+		private int pause;
+
+		public Pump( @NotNull AConveyor conveyor, @NotNull SharedRing ring,
+				@NotNull Storage<ByteBuffer> target, int capacity, int maxPause ) {
+			super(conveyor);
+			this.ring = ring; this.target = target;
+			this.capacity = capacity; this.maxPause = Math.max(1, maxPause);
+			this.buffer = ByteBuffer.allocate(ring.slot());
+			start(); }
+
+		/** Остановить насос. */
+		public void close() { call($Close); }
+
+		@Override protected int work(int stage) { switch (stage) {
+		case $Start: case $Run: case $Timer:
+			int count = 0, idle = 0;
+			ByteBuffer buffer = this.buffer;
+			buffer.clear();
+			while (count < Burst && target.size() < capacity) {
+				if (ring.poll(buffer) < 0) {
+					if (count != 0 || ++idle > Spin) break;
+					Thread.onSpinWait(); continue; }
+				buffer.flip();
+				target.push(ByteBuffer.allocate(buffer.remaining()).put(buffer).flip());
+				buffer.clear(); ++count; }
+			// Полная пачка — сразу дальше, неполная — короткая пауза, пусто — пауза вдвое дольше
+			if (count == Burst) { pause = 0; call($Run); return $Default$; }
+			pause = count != 0 ? 1 : Math.min(Math.max(1, pause << 1), maxPause);
+			delay(pause);
+			return $Default$;
+		case $Close: return $Finish$;
+		default: return $Unknown$; } }
+
+		/** Число холостых проверок пустого кольца перед засыпанием. */
+		private static final int Spin  = 256;
+		/** Наибольшее число сообщений за один проход этапа. */
+		private static final int Burst = 256;
+		private static final int $Run   = 1;
+		private static final int $Close = 2;
+	}
+}
@@ -0,0 +1,80 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import org.senjo.annotation.*;
+import org.senjo.conveyor.Entry.Storage;
+
+/** Подписчик Reactive Streams ({@link Flow.Subscriber}), который складывает элементы
+ * в хранилище задачи {@link Storage}. Подписчик запрашивает у поставщика ровно столько
+ * элементов, сколько свободно места в хранилище заданной ёмкости, т.о. хранилище никогда
+ * не растёт сверх ёмкости, а медленная задача тормозит поставщика (обратное давление).
+ * <p/>Новые элементы запрашиваются после этапов разбора хранилища, когда свободной стала
+ * хотя бы половина ёмкости, чтобы не дёргать поставщика на каждый элемент.
+ * <p/>Требует Java 9, поэтому лежит в отдельных исходниках exp9: они не входят в сборку
+ * на Java 8 и собираются своим проектом conveyor9 (Java 9) поверх проекта conveyor.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public final class StorageSubscriber<Target> implements Flow.Subscriber<Target> {
+	private final Storage<Target> storage;
+	private final int capacity;
+	/** Запрошенные у поставщика, но ещё не поступившие элементы. */
+	private final AtomicLong outstanding = new AtomicLong();
+	private volatile Flow.Subscription subscription;
+	private volatile boolean done;
+	private volatile Throwable error;
+
+	/** @param storage — хранилище задачи, куда будут складываться элементы;
+	 * @param capacity — ёмкость хранилища, больше неё элементов не запрашивается. */
+	public StorageSubscriber(@NotNull Storage<Target> storage, int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive");
+		this.storage = storage; this.capacity = capacity;
+		storage.onResume(this::demand); }
+
+	@Override public void onSubscribe(@NotNull Flow.Subscription subscription) {
+		if (this.subscription != null || done) { subscription.cancel(); return; }
+		this.subscription = subscription;
+		outstanding.set(capacity);
+		subscription.request(capacity); }
+
+	@Override public void onNext(@NotNull Target item) {
+		outstanding.decrementAndGet();
+		storage.push(item); }
+
+	@Override public void onError(@NotNull Throwable error) {
+		this.error = error; done = true;
+		Ticket<Target> ticket = new Ticket<>(); // Ошибка дойдёт до задачи элементом хранилища
+		ticket.fail(error instanceof Exception ? (Exception)error : new RuntimeException(error));
+		storage.signal(ticket); }
+
+	@Override public void onComplete() { done = true; }
+
+	/** Отменить подписку, поставщик перестанет присылать элементы. */
+	public void cancel() {
+		done = true;
+		Flow.Subscription subscription = this.subscription;
+		if (subscription != null) subscription.cancel(); }
+
+	/** Поставщик завершил поток (успешно или с ошибкой) или подписка отменена. */
+	public boolean isDone() { return done; }
+
+	/** Ошибка, с которой поставщик завершил поток, иначе null. */
+	public Throwable error() { return error; }
+
+	/** Вызывается после этапа разбора хранилища: дозапросить элементы на свободное место. */
+	private void demand() {
+		Flow.Subscription subscription = this.subscription;
+		if (subscription == null || done) return;
+		long free = capacity - storage.size() - outstanding.get();
+		if (free < (capacity + 1) / 2) return;
+		outstanding.addAndGet(free);
+		subscription.request(free); }
+}
@@ -10,7 +10,10 @@ package org.senjo.conveyor;
 import static org.senjo.basis.Base.Illegal;
 import static org.senjo.conveyor.Father.father;
 
+import java.io.IOException;
+import java.util.Collection;
 import java.util.Queue;
+import java.util.function.Supplier;
 import org.senjo.annotation.*;
 import org.senjo.basis.*;
 import org.senjo.conveyor.Entry.*;
@@ -30,6 +33,12 @@ public abstract class AConveyor extends ABasketSync {
 	@NotNull private final Queue<Unit> queue;
 	/** Объект наблюдения и управления таймерами задач, прикреплённых к этому конвейеру. */
 	@NotNull private final TimeKeeper  timer;
+	/** Наблюдатель готовности каналов, создаётся при первом обращении. */
+	@Nullable private SelectKeeper selector;
+	/** Пул буферов ввода-вывода, создаётся при первом обращении. */
+	@Nullable private volatile BufferPool buffers;
+	/** Новые линии создаются потоками-демонами. */
+	private volatile boolean daemon;
 
 //XXX Реализовать хранение и обработку иерархии зависимостей конвейеров друг от друга
 //	LinkedList<AConveyor> order;
@@ -78,9 +87,15 @@ public abstract class AConveyor extends ABasketSync {
 	@Naive final Line createLine(@Nullable Unit plan, int priority) {
 		Line line = new Line(this, name);
 		line.setPriority(priority);
+		line.setDaemon(daemon);
 		line.plan = plan; line.start();
 		return line; }
 
+	/** Создавать линии конвейера потоками-демонами, которые не удерживают JVM от завершения.
+	 * Действует только на линии созданные после вызова, поэтому вызывается сразу после
+	 * создания конвейера. */
+	public final AConveyor daemon(boolean daemon) { this.daemon = daemon; return this; }
+
 	/** Установить указанный приоритет исполнения потока всем линиям конвейера. */
 	@Synchronized public abstract AConveyor priority(int priority);
 
@@ -99,10 +114,12 @@ public abstract class AConveyor extends ABasketSync {
 	/** Добавить ещё одну задачу в конвейер на исполнение. Если все исполнительные линии
 	 * заняты, то задача будет добавлена в очередь и выполнена позже.
 	 * @param plan — абстрактная задача, которую конвейер должен выполнить. */
-	@Synchronized void push(Unit plan) { try { sync();
-		if (log.isDebug()) log.debugEx("Push ").hashName(plan).end();
-		if (exist(Load)) queue.add(plan); else wakeup(plan);
-	} finally { unsync(); } }
+	@Synchronized void push(Unit plan) {
+		if (!admit(plan)) return;
+		try { sync();
+			if (log.isDebug()) log.debugEx("Push ").hashName(plan).end();
+			if (exist(Load)) queue.add(plan); else wakeup(plan);
+		} finally { unsync(); } }
 
 	/** Добавить указанное множество задач в конвейер на исполнение. Если все исполнительные
 	 * линии заняты, то задача будет добавлена в очередь и выполнена позже.
@@ -112,11 +129,29 @@ public abstract class AConveyor extends ABasketSync {
 		Log.Buffer buffer = log.isDebug() ? log.debugEx("Push set [") : null;
 		for (int index = 0; index != count; ++index) {
 			Unit unit = array[index];
+			if (!admit(unit)) continue;
 			if (buffer != null) buffer.div(',', ' ').hashName(unit);
 			if (exist(Load)) queue.add(unit); else wakeup(unit); }
 		if (buffer != null) buffer.add("], size=").add(count).end();
 	} finally { unsync(); } }
 
+	/** Член пряди попадает в очередь конвейера, только если его прядь свободна, иначе
+	 * он ждёт в очереди пряди. */
+	private static boolean admit(Unit plan) {
+		Strand strand = plan instanceof Plan ? ((Plan<?>)plan).strand : null;
+		return strand == null || strand.admit(plan); }
+
+	/** Исполнить разовое действие в конвейере. Действие не оформляется задачей, у него нет
+	 * ни этапов, ни вхождений, поэтому это самый дешёвый способ раздать мелкую работу
+	 * по линиям конвейера. Ошибка действия только пишется в журнал конвейера. */
+	public final void execute(@NotNull Runnable action) { push(new Shot<Void>(this, action)); }
+
+	/** Вычислить значение разовым действием в конвейере, см. {@link #execute(Runnable)}.
+	 * @return квитанция, которая получит результат или ошибку действия. */
+	public final <Target> Ticket<Target> submit(@NotNull Supplier<? extends Target> action) {
+		Ticket<Target> result = new Ticket<>();
+		push(new Shot<>(this, action, result));
+		return result; }
 
 	/** Обменивает текущий plan со следующим, который нужно обработать. Если текущий plan
 	 * не нужно возвращать в очередь, то нужно передать null. Если передан plan и очередь
@@ -162,11 +197,17 @@ public abstract class AConveyor extends ABasketSync {
 
 	/** Добавить таймер задачи на ожидание. Когда момент времени таймера наступит, он
 	 * автоматически будет разбужен. */
-	<T extends Waiting> T append(T wait) { timer.push(wait); return wait; }
+	<T extends Waiting> T append(T wait) { wait.armed(); timer.push(wait); return wait; }
+
+	/** Разом добавить пачку таймеров, восстановленных из журнала. */
+	void append(@NotNull Collection<? extends Waiting> waits) { timer.push(waits); }
 
 	/** Отозвать ранее добавленный, но ещё не сработавший таймер задачи. Когда момент
-	 * времени таймера наступает, таймер автоматически выталкивается из очереди. */
-	boolean remove(Waiting wait) { return timer.take(wait); }
+	 * времени таймера наступает, таймер автоматически выталкивается из очереди. Журнал
+	 * узнаёт об отзыве, только если таймер действительно был отозван до срабатывания. */
+	boolean remove(Waiting wait) {
+		if (!timer.take(wait)) return false;
+		wait.dropped(); return true; }
 
 	/** Отдать освободившуюся линию хранителю времени если это ему она вообще нужна.
 	 * <p/>Важно! {@link #Hybrid} должен отсутствовать, это не проверяется. */
@@ -266,6 +307,26 @@ public abstract class AConveyor extends ABasketSync {
 
 
 
+//======== Select : наблюдение готовности каналов ввода-вывода ===========================//
+	/** Хранитель выборки конвейера, создаётся при первом обращении. */
+	@Synchronized final SelectKeeper selector() throws IOException { try { sync();
+		if (selector == null) selector = new SelectKeeper(this);
+		return selector;
+	} finally { unsync(); } }
+
+
+
+	/** Пул прямых буферов ввода-вывода конвейера, создаётся при первом обращении. */
+	@Synchronized public final BufferPool buffers() {
+		BufferPool result = buffers;
+		if (result == null) try { sync();
+			if ((result = buffers) == null) buffers = result
+					= new BufferPool(BufferPool.DefaultSize, BufferPool.DefaultCapacity);
+		} finally { unsync(); }
+		return result; }
+
+
+
 //======== Plan Hash : хранилище задач, которые пока ещё привязаны к конвейеру ===========//
 	/** Команда завершения работы конвейера. Перед остановкой конвейер выполнит все задачи,
 	 * которые ещё есть в очереди задач. После пошлёт сигнал в Father и дождётся от него
@@ -289,6 +350,7 @@ public abstract class AConveyor extends ABasketSync {
 	@Synchronized final void kill() { try { sync();
 		if (empty(Idle)) throw Illegal("Can't destroy the conveyor, it has a load line");
 		father.remove(this);
+		if (selector != null) { selector.close(); selector = null; }
 		take(Shutdown);
 		do wakeup(Line.kill); while (empty(Load));
 	} finally { push(Shutdown|Finished); unsync(); } }
@@ -0,0 +1,64 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import org.senjo.annotation.*;
+
+/** Асинхронная блокировка для задач. В отличие от {@link Task#lock()} никогда не паркует
+ * линию конвейера: захват либо удаётся сразу, либо задача встаёт в очередь ожидающих
+ * и текущий этап просто завершается. Когда владение передаётся задаче, ей в цепочку
+ * добавляется системное вхождение, которое вызывает ждавший этап уже под блокировкой.
+ * <pre>
+ * case $Start:
+ *     if (!lock(account, $Transfer)) return $Default$;
+ * case $Transfer:
+ *     ... // Этап исполняется под блокировкой, она снимется по его окончании
+ *     return $Finish$;</pre>
+ * Блокировка держится до конца этапа, как и {@link Task#lock()}: по окончании этапа,
+ * при ошибке этапа или при завершении задачи она освобождается автоматически и переходит
+ * к следующей задаче в очереди. Очередь ожидающих справедливая (FIFO).
+ * <p/>Блокировка — это {@link AsyncSemaphore} с единственным разрешением, которое к тому же
+ * помнит своего владельца: повторный захват владельцем успешен сразу.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public final class AsyncLock extends AsyncSemaphore {
+	/** Текущее владение или null, если блокировка свободна. Меняется под синхронизацией
+	 * семафора. */
+	private Permit holder;
+
+	public AsyncLock() { super(1); }
+
+	/** Захватить блокировку или встать в очередь. Повторный захват владельцем сразу
+	 * успешен и не требует повторного освобождения.
+	 * @return true — блокировка захвачена до конца текущего этапа; false — задача стоит
+	 *         в очереди, этап stage будет вызван после передачи владения. */
+	boolean lock(@NotNull Task<?> task, int stage) { return acquire(task, stage) != null; }
+
+	/** Досрочно освободить блокировку задачи, а если задача ещё ждёт в очереди, то снять
+	 * её с ожидания. */
+	@Synchronized void unlock(@NotNull Task<?> task) {
+		Permit permit;
+		try { sync();
+			permit = holder != null && holder.owner == task ? holder : null;
+			withdraw(task);
+		} finally { unsync(); }
+		if (permit != null) permit.close(); }
+
+	/** Блокировка кем-то захвачена. */
+	@Synchronized public boolean isLocked() {
+		try { sync(); return holder != null; } finally { unsync(); } }
+
+	@Override Permit held(Task<?> task) {
+		return holder != null && holder.owner == task ? holder : null; }
+
+	@Override void granted(Permit permit) { holder = permit; }
+
+	/** Разрешение вернулось в запас, значит блокировка свободна. */
+	@Override void put(@Nullable Object item) { holder = null; }
+}
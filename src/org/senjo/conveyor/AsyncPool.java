@@ -0,0 +1,44 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import org.senjo.annotation.*;
+
+/** Асинхронный пул объектов для задач: соединений, буферов и т.п. Построен на
+ * {@link AsyncSemaphore}, где каждое разрешение несёт один объект пула. Задача, которой
+ * не хватило объекта, не занимает линию ожиданием, а встаёт в очередь; освободившийся
+ * объект передаётся ей напрямую вместе с вызовом ждавшего этапа.
+ * <pre>
+ * case $Start:
+ *     if ((connection = lease(pool, $Query)) == null) return $Default$;
+ *     ...
+ * case $Query:
+ *     if (connection == null) connection = leased(pool);
+ *     ... // Объект возвращается в пул по окончании этапа</pre>
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public final class AsyncPool<Item> extends AsyncSemaphore {
+	/** Свободные объекты пула. */
+	private final ArrayDeque<Item> free;
+
+	public AsyncPool(@NotNull Collection<? extends Item> items) {
+		super(items.size());
+		free = new ArrayDeque<>(items); }
+
+	/** Добавить в пул новый объект. Если есть ожидающие задачи, он сразу достанется первой
+	 * из них. */
+	public void add(@NotNull Item item) { give(item); }
+
+	@Override Object take() { return free.poll(); }
+
+	@SuppressWarnings("unchecked")
+	@Override void put(Object item) { free.push((Item)item); }
+}
@@ -0,0 +1,148 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import org.senjo.annotation.*;
+import org.senjo.basis.ABasketSync;
+import org.senjo.support.Log;
+
+/** Асинхронный семафор для задач. Ограничивает число задач, одновременно работающих
+ * с общим ресурсом, например с базой данных, но в отличие от
+ * {@link java.util.concurrent.Semaphore} никогда не паркует линию конвейера. Задача, которой
+ * не хватило разрешения, встаёт в очередь ожидающих, а её этап завершается. Освободившееся
+ * разрешение передаётся первой ожидающей задаче системным вхождением, которое вызывает
+ * ждавший этап.
+ * <pre>
+ * case $Start:
+ *     if (!acquire(database, $Query)) return $Default$;
+ * case $Query:
+ *     ... // Разрешение держится до конца этапа
+ *     return $Finish$;</pre>
+ * Разрешение действует до конца этапа: оно регистрируется как закрываемый ресурс этапа,
+ * поэтому возвращается механизмом {@link Task#watchIn(AutoCloseable)} по окончании этапа,
+ * при его ошибке или при завершении задачи. Очередь ожидающих справедливая (FIFO).
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public class AsyncSemaphore extends ABasketSync {
+	/** Свободные разрешения. */
+	private int permits;
+	/** Ожидающие задачи в порядке поступления. */
+	private final ArrayDeque<Permit> waiters = new ArrayDeque<>();
+
+	public AsyncSemaphore(int permits) {
+		if (permits < 0) throw new IllegalArgumentException("Permits must not be negative");
+		this.permits = permits; }
+
+	/** Занять разрешение или встать в очередь.
+	 * @return разрешение, если оно занято сразу; null — задача стоит в очереди, этап stage
+	 *         будет вызван после передачи разрешения. */
+	@Synchronized final Permit acquire(@NotNull Task<?> task, int stage) {
+		Permit result;
+		try { sync();
+			if ((result = held(task)) != null) return result; // Уже держит до конца этапа
+			if (!_grant(result = new Permit(this, task, stage))) return null;
+		} finally { unsync(); }
+		task.watchIn(result);
+		return result; }
+
+	/** Этап разрешения попросил повтор. Текущее разрешение вернётся по окончании этапа,
+	 * поэтому повтор ждёт нового разрешения как обычная задача очереди. */
+	@Synchronized final void repeat(Permit permit) {
+		Permit next = new Permit(this, permit.owner, permit.stage);
+		try { sync(); if (!_grant(next)) return; } finally { unsync(); }
+		if (!next.owner.offerEntry(next)) next.close(); }
+
+	/** Выдать разрешение сразу или поставить его в очередь ожидающих.
+	 * @return true — разрешение выдано. */
+	@Naive private final boolean _grant(Permit permit) {
+		if (permits == 0) { waiters.add(permit); return false; }
+		--permits; permit.item = take(); granted(permit);
+		return true; }
+
+	/** Снять все ожидающие разрешения задачи с очереди. */
+	@Naive final void withdraw(Task<?> task) {
+		for (Iterator<Permit> iterator = waiters.iterator(); iterator.hasNext(); )
+			if (iterator.next().owner == task) iterator.remove(); }
+
+	/** Свободные разрешения. */
+	@Synchronized public final int available() {
+		try { sync(); return permits; } finally { unsync(); } }
+
+	/** Число задач, ожидающих разрешение. */
+	@Synchronized public final int waiting() {
+		try { sync(); return waiters.size(); } finally { unsync(); } }
+
+	/** Вернуть разрешение, возможно вместе с объектом пула. Если есть ожидающие задачи, то
+	 * разрешение с объектом передаётся первой из них, иначе возвращается в запас.
+	 * Завершённые задачи не могут принять вхождение, разрешение сразу уходит дальше. */
+	@Synchronized final void give(@Nullable Object item) {
+		Permit next;
+		do {
+			try { sync();
+				next = waiters.poll();
+				if (next == null) { ++permits; put(item); return; }
+				next.item = item; granted(next);
+			} finally { unsync(); }
+		} while (!next.owner.offerEntry(next)); }
+
+	/** Выдать объект вместе с новым разрешением. Семафор объектов не имеет. */
+	@Naive Object take() { return null; }
+	/** Вернуть в запас объект освободившегося разрешения. */
+	@Naive void put(@Nullable Object item) { }
+	/** Разрешение, которое задача уже держит и которое можно выдать повторно, иначе null.
+	 * Семафор повторной выдачи не знает. */
+	@Naive Permit held(Task<?> task) { return null; }
+	/** Разрешение передано задаче: сразу или из очереди ожидающих. */
+	@Naive void granted(Permit permit) { }
+
+
+
+//======== Permit : вхождение разрешения семафора ========================================//
+	/** Разрешение семафора. Для ожидавшей задачи является системным вхождением, которое
+	 * вызывает её этап, а на время этапа регистрируется как закрываемый ресурс этапа.
+	 * Отозванное до своего этапа разрешение этап не вызывает, а команда {@link
+	 * Unit#$Repeat$} этапа снова встаёт в очередь семафора, т.е. этап никогда
+	 * не исполняется без разрешения. */
+	static final class Permit extends Entry implements AutoCloseable {
+		private final AsyncSemaphore source;
+		final Task<?> owner;
+		/** Объект пула, выданный вместе с разрешением. */
+		Object item;
+
+		Permit(AsyncSemaphore source, Task<?> owner, int stage) { super(KindGrant, stage);
+			this.source = source; this.owner = owner; }
+
+		final boolean isFrom(AsyncSemaphore source) { return this.source == source; }
+
+		@Override int inwork(Line line) {
+			// Разрешение отозвано, пока вхождение ждало в цепочке задачи
+			if (existSync(Released)) return Unit.$Default$;
+			owner.watchIn(this);
+			int command = line.process(owner, this, stage);
+			if (!Unit.isRepeat(command)) return command;
+			source.repeat(this);
+			return Unit.$Default$; }
+
+		/** Задача завершилась, так и не дойдя до этапа разрешения. Вызывается вне блокировки
+		 * задачи (см. {@link Unit#finishEntries()}), поэтому разрешение сразу передаётся
+		 * следующей задаче очереди, не рискуя встречной блокировкой двух задач. */
+		@Override void onFinish() { close(); }
+
+		/** Вернуть разрешение, повторные вызовы ничего не делают. */
+		@Override public void close() { if (pushSync(Released)) source.give(item); }
+
+		@Override boolean print(Log.Buffer out) { out.add("entry Permit"); return true; }
+
+		protected static final int fin = Entry.fin-1;
+		/** Разрешение уже возвращено семафору. */
+		private static final int Released = 1<<fin+1;
+	}
+}
@@ -0,0 +1,216 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import org.senjo.annotation.*;
+import org.senjo.basis.ABasketSync;
+import org.senjo.support.Log;
+
+/** Вещательное хранилище: один писатель, много читателей. Построено на заранее выделенном
+ * кольцевом буфере по мотивам Disruptor. Каждая подписанная задача имеет свой курсор
+ * чтения {@link Reader}, элементы никогда не копируются для каждого подписчика отдельно,
+ * а писатель ждёт самого медленного читателя. Т.о. расход памяти и цена записи
+ * не зависят от числа подписчиков.
+ * <p/>Читатель ведёт себя как обычное вхождение Storage: пока у него есть непрочитанные
+ * элементы, он стоит в очереди своей задачи и вызывает указанный этап. Дочитав буфер
+ * до конца, читатель засыпает и будет разбужен ближайшей записью. Писатель трогает
+ * только уснувших читателей, поэтому пока все читатели заняты, запись стоит O(1).
+ * <p/>Писатель никогда не ждёт в линии: если буфер полон, то {@link #offer(Object, Unit,
+ * int)} сразу возвращает false и разбудит задачу писателя указанным этапом, когда самый
+ * медленный читатель освободит место.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+@SuppressWarnings("unchecked")
+public final class BroadcastStorage<Target> extends ABasketSync {
+	private final Object[] ring;
+	private final int      mask;
+	/** Номер следующей записи в буфер, он же число опубликованных элементов. Читатель
+	 * может читать все элементы с номером меньше курсора. */
+	private volatile long cursor;
+	/** Запомненный номер самого медленного читателя. Пересчитывается только тогда, когда
+	 * по старому значению буфер кажется заполненным. */
+	private long gating;
+
+	/** Все подписанные читатели, массив копируется при каждом изменении подписки. */
+	private Reader<Target>[] readers = (Reader<Target>[])new Reader<?>[0];
+	/** Уснувшие читатели, которые дочитали буфер до конца. */
+	private final ArrayDeque<Reader<Target>> idle = new ArrayDeque<>();
+	/** Задача писателя, которая ждёт места в буфере, и её этап пробуждения. */
+	@Nullable private Unit writer;
+	private int writerStage;
+
+	/** @param capacity — ёмкость кольцевого буфера, округляется вверх до степени двойки. */
+	public BroadcastStorage(int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive");
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) size <<= 1;
+		ring = new Object[size];
+		mask = size - 1; }
+
+	/** Подписать задачу к вещанию. Читатель начинает с текущего курсора, т.е. видит только
+	 * элементы записанные после подписки.
+	 * @param owner — задача читатель;
+	 * @param stage — этап задачи, который будет разбирать элементы. */
+	@Synchronized public Reader<Target> subscribe(@NotNull Unit owner, int stage) {
+		try { sync();
+			Reader<Target> result = new Reader<>(this, owner, stage, cursor);
+			Reader<Target>[] array = Arrays.copyOf(readers, readers.length + 1);
+			array[array.length-1] = result;
+			readers = array;
+			result.turnFlag(Reader.Idle, true);
+			idle.push(result);
+			return result;
+		} finally { unsync(); } }
+
+	/** Записать элемент, если в буфере есть место.
+	 * @return false — самый медленный читатель отстал на всю ёмкость буфера, элемент
+	 *         не записан. */
+	@Synchronized public boolean offer(Target target) {
+		try { sync(); return _offer(target); } finally { unsync(); } }
+
+	/** Записать элемент из этапа задачи писателя, не занимая линию ожиданием.
+	 * @param writer — задача писателя;
+	 * @param stage  — этап, который будет вызван у писателя, когда в буфере освободится
+	 *        место, если элемент не удалось записать сразу;
+	 * @return false — буфер полон, элемент не записан, писатель будет разбужен. */
+	@Synchronized public boolean offer(Target target, @NotNull Unit writer, int stage) {
+		try { sync();
+			if (_offer(target)) return true;
+			this.writer = writer; this.writerStage = stage;
+			return false;
+		} finally { unsync(); } }
+
+	/** Число подписанных читателей. */
+	@Synchronized public int readers() {
+		try { sync(); return readers.length; } finally { unsync(); } }
+
+	public int capacity() { return ring.length; }
+
+	@Naive private final boolean _offer(Target target) {
+		long cursor = this.cursor;
+		if (cursor - gating >= ring.length) {
+			gating = minSequence(cursor);
+			if (cursor - gating >= ring.length) return false; }
+		ring[(int)cursor & mask] = target;
+		this.cursor = cursor + 1; // Публикация элемента для читателей
+		if (!idle.isEmpty()) _wakeup();
+		return true; }
+
+	@Naive private final long minSequence(long cursor) {
+		long result = cursor;
+		for (Reader<Target> reader : readers) {
+			long sequence = reader.sequence;
+			if (sequence < result) result = sequence; }
+		return result; }
+
+	/** Разбудить ждущего писателя, если самый медленный читатель освободил место. */
+	@Naive private final void _resumeWriter() {
+		Unit writer = this.writer;
+		if (writer == null) return;
+		long cursor = this.cursor;
+		if (cursor - (gating = minSequence(cursor)) >= ring.length) return;
+		this.writer = null;
+		writer.appendEntryAndPushQueue(new Entry.Call(writerStage)); }
+
+	/** Разбудить всех уснувших читателей. Читатели завершённых задач отписываются. */
+	@Naive private final void _wakeup() {
+		Reader<Target> reader;
+		while ((reader = idle.poll()) != null) {
+			reader.turnFlag(Reader.Idle, false);
+			if ( reader.owner.existSyncª(Unit.Finished)
+					|| !reader.owner.offerEntry(reader) ) { _remove(reader); continue; }
+			Log log = reader.owner.conveyor.log;
+			if (log.isTrace()) log.traceEx("BroadcastStorage#wakeup: ")
+					.hashName(reader.owner).end();
+		}
+	}
+
+	@Naive private final void _remove(Reader<Target> reader) {
+		Reader<Target>[] array = readers;
+		int index = array.length;
+		while (--index >= 0 && array[index] != reader);
+		if (index < 0) return;
+		Reader<Target>[] result = (Reader<Target>[])new Reader<?>[array.length - 1];
+		System.arraycopy(array, 0, result, 0, index);
+		System.arraycopy(array, index+1, result, index, result.length - index);
+		readers = result; }
+
+	/** Вызывается задачей после обработки этапа читателя. Если непрочитанные элементы ещё
+	 * есть, то читатель остаётся в работе, иначе засыпает. */
+	@Synchronized private final int resume(Reader<Target> reader) {
+		try { sync();
+			_resumeWriter();
+			if (reader.isFlag(Reader.Canceled)) return Unit.ApplyNone;
+			if (reader.sequence < cursor) return Unit.ApplyWork;
+			reader.turnFlag(Reader.Idle, true);
+			idle.push(reader);
+			return Unit.ApplyNone;
+		} finally { unsync(); } }
+
+	@Synchronized private final void unsubscribe(Reader<Target> reader) {
+		try { sync();
+			if (!reader.turnFlag(Reader.Canceled, true)) return;
+			if (reader.isFlag(Reader.Idle)) idle.remove(reader);
+			_remove(reader);
+			// Ушедший читатель больше не держит писателя
+			gating = minSequence(cursor);
+			_resumeWriter();
+		} finally { unsync(); } }
+
+
+
+//======== Reader : вхождение подписки задачи с личным курсором чтения ==================//
+	/** Подписка одной задачи к вещательному хранилищу. Курсор читателя двигает только
+	 * задача владелец в своём этапе, писатель его только читает. */
+	public static final class Reader<Target> extends Entry {
+		private final BroadcastStorage<Target> source;
+		private final Unit owner;
+		/** Номер следующего элемента для чтения. */
+		private volatile long sequence;
+
+		private Reader(BroadcastStorage<Target> source, Unit owner, int stage, long start) {
+			super(KindStorage, stage);
+			this.source = source; this.owner = owner; this.sequence = start; }
+
+		@Override int resume() { return source.resume(this); }
+
+		/** Задача читателя завершилась посреди чтения, отписаться, иначе читатель навсегда
+		 * задержит писателя. Вызывается вне блокировки задачи читателя (см.
+		 * {@link Unit#finishEntries()}), поэтому писателя можно будить сразу. */
+		@Override void onFinish() { source.unsubscribe(this); }
+
+		/** Прочитать следующий элемент или вернуть {@code null}, если читатель догнал
+		 * писателя. Метод вызывается только из этапа задачи владельца. */
+		@Naive public Target take() {
+			long sequence = this.sequence;
+			if (sequence >= source.cursor) return null;
+			Target result = (Target)source.ring[(int)sequence & source.mask];
+			this.sequence = sequence + 1; // Освобождает ячейку для писателя
+			return result; }
+
+		/** Число элементов доступных для чтения прямо сейчас. */
+		public int available() { return (int)(source.cursor - sequence); }
+
+		/** Отписаться от вещания. Читатель перестаёт задерживать писателя. */
+		public void cancel() { source.unsubscribe(this); }
+
+		@Override boolean print(Log.Buffer out) { out.add("entry Broadcast"); return true; }
+
+		@Naive final boolean isFlag  (int mask) { return exist(mask); }
+		@Naive final boolean turnFlag(int mask, boolean state) { return turn(mask, state); }
+
+		protected static final int fin = Entry.fin-2;
+		/** Читатель спит и лежит в стеке {@link BroadcastStorage#idle}. */
+		private static final int Idle     = 1<<fin+1;
+		/** Читатель отписался от вещания. */
+		private static final int Canceled = 1<<fin+2;
+	}
+}
@@ -0,0 +1,53 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import org.senjo.annotation.*;
+import org.senjo.basis.ABasketSync;
+
+/** Пул прямых буферов одного размера. Прямые буферы дороги в выделении и освобождаются
+ * только сборщиком мусора, поэтому задачи ввода-вывода берут их из пула и возвращают
+ * обратно. Пул хранит не более {@code capacity} свободных буферов, лишние возвращённые
+ * буферы просто забываются. У каждого конвейера есть свой пул {@link AConveyor#buffers()}.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public final class BufferPool extends ABasketSync {
+	/** Размер буфера пула конвейера по умолчанию. */
+	public static final int DefaultSize     = 64 << 10;
+	/** Число свободных буферов пула конвейера по умолчанию. */
+	public static final int DefaultCapacity = 64;
+
+	private final int size, capacity;
+	private final ArrayDeque<ByteBuffer> free;
+
+	public BufferPool(int size, int capacity) {
+		if (size < 1) throw new IllegalArgumentException("Buffer size must be positive");
+		this.size = size; this.capacity = capacity;
+		this.free = new ArrayDeque<>(Math.min(capacity, 64)); }
+
+	/** Взять очищенный буфер из пула или выделить новый. */
+	@Synchronized public ByteBuffer take() {
+		ByteBuffer result;
+		try { sync(); result = free.poll(); } finally { unsync(); }
+		if (result == null) return ByteBuffer.allocateDirect(size);
+		result.clear(); return result; }
+
+	/** Вернуть буфер в пул. Буферы чужого размера не принимаются. */
+	@Synchronized public void give(@Nullable ByteBuffer buffer) {
+		if (buffer == null || buffer.capacity() != size || !buffer.isDirect()) return;
+		try { sync(); if (free.size() < capacity) free.push(buffer); } finally { unsync(); } }
+
+	public int size() { return size; }
+
+	/** Число свободных буферов в пуле. */
+	@Synchronized public int available() {
+		try { sync(); return free.size(); } finally { unsync(); } }
+}
@@ -0,0 +1,254 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import org.senjo.annotation.*;
+import org.senjo.basis.ABasketSync;
+import org.senjo.conveyor.Entry.Timer;
+
+/** Кеш встроенный в конвейер. Ограничен суммарным весом значений, вытесняет давно
+ * не читанные значения (LRU) и забывает значения по сроку жизни.
+ * <p/>Сроки жизни не заводят таймер на каждый ключ. Они собираются в корзины шириной
+ * в 1/16 стандартного срока, а служебная задача кеша держит в хранителе времени
+ * единственный таймер на ближайшую корзину и разом чистит все наступившие. Чтение
+ * проверяет срок само, поэтому просроченное значение никогда не будет выдано, даже если
+ * корзина ещё не почищена.
+ * <p/>Промах кеша загружается задачей в указанном конвейере. Одновременные промахи
+ * одного ключа схлопываются в одну загрузку через {@link SingleFlight}, результат все
+ * заказчики получают через квиток {@link #request(Object)}.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public final class Cache<Key, Value> extends ABasketSync implements AutoCloseable {
+	private final AConveyor conveyor;
+	private final Function<? super Key, ? extends Value> loader;
+	private final ToIntFunction<? super Value> weigher;
+	private final long maxWeight;
+	/** Стандартный срок жизни значения в миллисекундах, 0 — бессрочно. */
+	private final int  ttl;
+	/** Ширина корзины сроков жизни в миллисекундах. */
+	private final int  granularity;
+
+	/** Значения в порядке доступа: первое — самое давно читанное. */
+	private final LinkedHashMap<Key, Item<Key, Value>> items =
+			new LinkedHashMap<>(16, 0.75f, true);
+	/** Корзины сроков жизни: момент чистки корзины → значения с истекающим сроком. Значение
+	 * покидает корзину сразу при замене, вытеснении или забывании, поэтому корзины
+	 * не удерживают в памяти ушедшие из кеша значения. Item сравнивается по ссылке. */
+	private final TreeMap<Long, HashSet<Item<Key, Value>>> buckets = new TreeMap<>();
+	private final SingleFlight<Key, Value> flight;
+	private final Keeper keeper;
+	private long weight;
+	private long hits, misses, evictions, expirations;
+
+	/** Кеш, где вес каждого значения равен единице, т.е. ограничено число значений. */
+	public Cache( @NotNull AConveyor conveyor, long maxSize, int ttl,
+			@Nullable Function<? super Key, ? extends Value> loader ) {
+		this(conveyor, maxSize, null, ttl, loader); }
+
+	/** @param conveyor — конвейер служебной задачи и задач загрузки промахов;
+	 * @param maxWeight — предельный суммарный вес значений;
+	 * @param weigher — вычисление веса значения, null — вес каждого значения 1;
+	 * @param ttl — стандартный срок жизни значения в миллисекундах, 0 — бессрочно;
+	 * @param loader — загрузка значения по ключу, исполняется в задаче конвейера,
+	 *        null — кеш без загрузки, запрос промаха будет провален. */
+	public Cache( @NotNull AConveyor conveyor, long maxWeight,
+			@Nullable ToIntFunction<? super Value> weigher, int ttl,
+			@Nullable Function<? super Key, ? extends Value> loader ) {
+		if (maxWeight < 1) throw new IllegalArgumentException("Max weight must be positive");
+		this.conveyor  = conveyor ; this.maxWeight = maxWeight;
+		this.weigher   = weigher  ; this.loader    = loader   ;
+		this.ttl       = ttl      ;
+		this.granularity = Math.max(MinGranularity, ttl > 0 ? ttl >> 4 : Second);
+		this.keeper = new Keeper(conveyor);
+		this.flight = new SingleFlight<>(key -> new Load(conveyor, key).ticket); }
+
+	/** Прочитать значение без загрузки.
+	 * @return значение или null, если его нет или срок его жизни истёк. */
+	@Synchronized public @Nullable Value get(@NotNull Key key) {
+		long now = System.currentTimeMillis();
+		try { sync();
+			Item<Key, Value> item = items.get(key);
+			if (item != null && item.isExpired(now)) {
+				_remove(key, item); ++expirations; item = null; }
+			if (item != null) { ++hits; return item.value; }
+			++misses; return null;
+		} finally { unsync(); } }
+
+	/** Запросить значение. Если оно есть, то возвращается уже решённый квиток, иначе
+	 * запускается загрузка (или подключение к уже идущей загрузке того же ключа). */
+	public @NotNull ITicket<Value> request(@NotNull Key key) {
+		Value value = get(key);
+		return value != null ? Ticket.of(value) : flight.request(key); }
+
+	/** Положить значение со стандартным сроком жизни. */
+	public void put(@NotNull Key key, @NotNull Value value) { put(key, value, ttl); }
+
+	/** Положить значение с указанным сроком жизни в миллисекундах, 0 — бессрочно. */
+	@Synchronized public void put(@NotNull Key key, @NotNull Value value, int ttl) {
+		int weight = weigher != null ? weigher.applyAsInt(value) : 1;
+		long expire = ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+		try { sync();
+			Item<Key, Value> item = new Item<>(key, value, weight, expire);
+			Item<Key, Value> prev = items.put(key, item);
+			if (prev != null) { this.weight -= prev.weight; _unschedule(prev); }
+			this.weight += weight;
+			if (expire != 0) _schedule(item);
+			_evict();
+		} finally { unsync(); } }
+
+	/** Забыть значение по ключу. */
+	@Synchronized public void invalidate(@NotNull Key key) {
+		try { sync();
+			Item<Key, Value> item = items.get(key);
+			if (item != null) _remove(key, item);
+		} finally { unsync(); } }
+
+	@Synchronized public void clear() {
+		try { sync(); items.clear(); buckets.clear(); weight = 0; } finally { unsync(); } }
+
+	@Synchronized public int  size  () {
+		try { sync(); return items.size(); } finally { unsync(); } }
+	@Synchronized public long weight() { try { sync(); return weight; } finally { unsync(); } }
+	@Synchronized public long hits  () { try { sync(); return hits  ; } finally { unsync(); } }
+	@Synchronized public long misses() { try { sync(); return misses; } finally { unsync(); } }
+	/** Число значений вытесненных по весу. */
+	@Synchronized public long evictions() {
+		try { sync(); return evictions; } finally { unsync(); } }
+	/** Число значений забытых по сроку жизни. */
+	@Synchronized public long expirations() {
+		try { sync(); return expirations; } finally { unsync(); } }
+
+	/** Завершить служебную задачу кеша. Значения остаются доступными, но сроки жизни
+	 * проверяются только при чтении. */
+	@Override public void close() { keeper.close(); }
+
+	/** Положить значение в корзину его срока и, если корзина ближе взведённой, перевзвести
+	 * таймер служебной задачи. */
+	@Naive private final void _schedule(Item<Key, Value> item) {
+		long bucket = bucketOf(item.expire);
+		HashSet<Item<Key, Value>> set = buckets.get(bucket);
+		if (set == null) buckets.put(bucket, set = new HashSet<>());
+		set.add(item);
+		if (buckets.firstKey() == bucket) keeper.arm(bucket); }
+
+	/** Убрать ушедшее из кеша значение из корзины его срока. Взведённый на опустевшую
+	 * корзину таймер просто перевзведётся на следующую при срабатывании. */
+	@Naive private final void _unschedule(Item<Key, Value> item) {
+		if (item.expire == 0) return;
+		long bucket = bucketOf(item.expire);
+		HashSet<Item<Key, Value>> set = buckets.get(bucket);
+		if (set != null && set.remove(item) && set.isEmpty()) buckets.remove(bucket); }
+
+	private final long bucketOf(long expire) { return (expire / granularity + 1) * granularity; }
+
+	@Naive private final void _evict() {
+		Iterator<Map.Entry<Key, Item<Key, Value>>> iterator = items.entrySet().iterator();
+		while (weight > maxWeight && iterator.hasNext()) {
+			Item<Key, Value> item = iterator.next().getValue();
+			weight -= item.weight; _unschedule(item);
+			iterator.remove();
+			++evictions; } }
+
+	@Naive private final void _remove(Key key, Item<Key, Value> item) {
+		items.remove(key); weight -= item.weight; _unschedule(item); }
+
+	/** Почистить все наступившие корзины и взвести таймер на следующую. */
+	@Synchronized private final void expire() {
+		long now = System.currentTimeMillis();
+		try { sync();
+			keeper.disarm();
+			Map.Entry<Long, HashSet<Item<Key, Value>>> bucket;
+			while ((bucket = buckets.firstEntry()) != null && bucket.getKey() <= now) {
+				buckets.pollFirstEntry();
+				for (Item<Key, Value> item : bucket.getValue()) {
+					// Удаление по паре ключ-значение не продвигает ключ в порядке доступа
+					if (!items.remove(item.key, item)) continue;
+					weight -= item.weight; ++expirations; }
+			}
+			if (bucket != null) keeper.arm(bucket.getKey());
+		} finally { unsync(); } }
+
+	private static final int Second = 1_000;
+	/** Самая узкая корзина сроков жизни, чаще таймер служебной задачи не срабатывает. */
+	private static final int MinGranularity = 10;
+
+
+
+//======== Item : значение кеша ==========================================================//
+	private static final class Item<Key, Value> {
+		final Key   key;
+		final Value value;
+		final int   weight;
+		final long  expire;
+
+		Item(Key key, Value value, int weight, long expire) {
+			this.key = key; this.value = value; this.weight = weight; this.expire = expire; }
+
+		boolean isExpired(long now) { return expire != 0 && expire <= now; }
+	}
+
+
+
+//======== Keeper : служебная задача чистки сроков жизни =================================//
+	/** Служебная задача кеша. Держит в хранителе времени единственный таймер на ближайшую
+	 * корзину сроков жизни. */
+	private final class Keeper extends Task<Object> {
+		/** Взведённый таймер и момент его срабатывания, меняются под синхронизацией кеша. */
+		private Timer timer;
+		private long  armed;
+
+		Keeper(AConveyor conveyor) { super(conveyor); }
+
+		@Naive void arm(long instant) {
+			if (timer != null) { if (armed <= instant) return; timer.cancel(); }
+			armed = instant; timer = until(instant); }
+
+		/** Таймер сработал, следующий нужно взводить заново. */
+		@Naive void disarm() { timer = null; armed = 0; }
+
+		void close() { call($Close); }
+
+		@Override protected int work(int stage) { switch (stage) {
+		case $Timer: expire(); return $Default$;
+		case $Close: return $Finish$;
+		default: return $Unknown$; } }
+
+		private static final int $Close = 1;
+	}
+
+
+
+//======== Load : задача загрузки промаха ================================================//
+	private final class Load extends Task<Object> {
+		private final Key key;
+		final Ticket<Value> ticket = new Ticket<>();
+
+		Load(AConveyor conveyor, Key key) { super(conveyor); this.key = key; start(); }
+
+		@Override protected int work(int stage) {
+			if (stage != $Start) return $Unknown$;
+			if (loader == null) {
+				ticket.fail(new IllegalStateException("Cache has no loader for key " + key));
+				return $Finish$; }
+			Value value = loader.apply(key);
+			if (value != null) put(key, value);
+			ticket.complete(value);
+			return $Finish$; }
+
+		@Override protected int error(Exception error, boolean nested) {
+			ticket.fail(error); return $Finish$; }
+	}
+}
@@ -0,0 +1,227 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.senjo.annotation.*;
+
+/** Фасад {@link ScheduledExecutorService} поверх существующего конвейера. Сторонние
+ * библиотеки получают привычный исполнитель, а работа исполняется линиями конвейера,
+ * без отдельного пула потоков.
+ * <p/>Каждая отправка — это лёгкая единица {@link Unit} без цепочки вхождений, которая
+ * просто исполняет команду в линии и сразу отдаёт линию следующей задаче. Отложенные
+ * и периодические команды ждут в хранителе времени конвейера.
+ * <p/>Остановка исполнителя не останавливает сам конвейер. После {@link #shutdown()} новые
+ * команды отвергаются, периодические команды отменяются, а уже принятые разовые команды,
+ * в т.ч. отложенные, исполняются. {@link #awaitTermination(long, TimeUnit)} ждёт, пока все
+ * принятые команды не будут исполнены или отменены.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public class ConveyorExecutor extends AbstractExecutorService
+		implements ScheduledExecutorService {
+	private final AConveyor conveyor;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition terminated = lock.newCondition();
+	/** Голова двусвязного списка неисполненных команд, узлы списка — сами единицы. */
+	private Job  jobs;
+	private int  count;
+	private boolean shutdown;
+
+	public ConveyorExecutor(@NotNull AConveyor conveyor) { this.conveyor = conveyor; }
+
+	public AConveyor conveyor() { return conveyor; }
+
+	@Override public void execute(@NotNull Runnable command) {
+		Job job = new Job(conveyor, command, null);
+		link(job);
+		conveyor.push(job); }
+
+	@Override public ScheduledFuture<?> schedule( @NotNull Runnable command, long delay,
+			@NotNull TimeUnit unit ) {
+		return schedule(new Scheduled<Void>(command, null, 0), delay, unit); }
+
+	@Override public <V> ScheduledFuture<V> schedule( @NotNull Callable<V> callable,
+			long delay, @NotNull TimeUnit unit ) {
+		return schedule(new Scheduled<>(callable, 0), delay, unit); }
+
+	@Override public ScheduledFuture<?> scheduleAtFixedRate( @NotNull Runnable command,
+			long initialDelay, long period, @NotNull TimeUnit unit ) {
+		if (period <= 0) throw new IllegalArgumentException("Period must be positive");
+		return schedule( new Scheduled<Void>(command, null, millis(period, unit)),
+				initialDelay, unit ); }
+
+	@Override public ScheduledFuture<?> scheduleWithFixedDelay( @NotNull Runnable command,
+			long initialDelay, long delay, @NotNull TimeUnit unit ) {
+		if (delay <= 0) throw new IllegalArgumentException("Delay must be positive");
+		return schedule( new Scheduled<Void>(command, null, -millis(delay, unit)),
+				initialDelay, unit ); }
+
+	@Override public void shutdown() {
+		ArrayList<Scheduled<?>> periodic = new ArrayList<>();
+		lock.lock();
+		try {
+			shutdown = true;
+			for (Job job = jobs; job != null; job = job.next)
+				if (job.task != null && job.task.isPeriodic()) periodic.add(job.task);
+			if (count == 0) terminated.signalAll();
+		} finally { lock.unlock(); }
+		for (Scheduled<?> task : periodic) task.cancel(false); }
+
+	@Override public List<Runnable> shutdownNow() {
+		ArrayList<Runnable> result = new ArrayList<>();
+		ArrayList<Job> waiting = new ArrayList<>();
+		lock.lock();
+		try {
+			shutdown = true;
+			for (Job job = jobs; job != null; job = job.next) {
+				if (job.canceled) continue;
+				job.canceled = true;
+				result.add(job.command());
+				if (job.task != null) waiting.add(job); }
+			if (count == 0) terminated.signalAll();
+		} finally { lock.unlock(); }
+		// Ждущие в хранителе времени команды уже никто не запустит, забыть их сразу
+		for (Job job : waiting) if (conveyor.remove(job.task.timing)) unlink(job);
+		return result; }
+
+	@Override public boolean isShutdown() {
+		lock.lock(); try { return shutdown; } finally { lock.unlock(); } }
+
+	@Override public boolean isTerminated() {
+		lock.lock(); try { return shutdown && count == 0; } finally { lock.unlock(); } }
+
+	@Override public boolean awaitTermination(long timeout, @NotNull TimeUnit unit)
+			throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while (!shutdown || count != 0) {
+				if (nanos <= 0) return false;
+				nanos = terminated.awaitNanos(nanos); }
+			return true;
+		} finally { lock.unlock(); } }
+
+	/** Число принятых, но ещё не исполненных команд. */
+	public int pending() { lock.lock(); try { return count; } finally { lock.unlock(); } }
+
+	private final <V> Scheduled<V> schedule(Scheduled<V> task, long delay, TimeUnit unit) {
+		Job job = task.job = new Job(conveyor, task, task);
+		task.timing = new Timing(job, System.currentTimeMillis() + millis(delay, unit));
+		link(job);
+		if (delay <= 0) conveyor.push(job); else conveyor.append(task.timing);
+		return task; }
+
+	private final void link(Job job) {
+		lock.lock();
+		try {
+			if (shutdown) throw new RejectedExecutionException("Executor is shut down");
+			job.next = jobs;
+			if (jobs != null) jobs.prev = job;
+			jobs = job; job.linked = true; ++count;
+		} finally { lock.unlock(); } }
+
+	private final void unlink(Job job) {
+		lock.lock();
+		try {
+			if (!job.linked) return;
+			job.linked = false;
+			if (job.prev != null) job.prev.next = job.next; else jobs = job.next;
+			if (job.next != null) job.next.prev = job.prev;
+			job.prev = job.next = null;
+			if (--count == 0 && shutdown) terminated.signalAll();
+		} finally { lock.unlock(); } }
+
+	private static long millis(long range, TimeUnit unit) {
+		long result = unit.toMillis(range);
+		return result == 0 && range > 0 ? 1 : result; }
+
+
+
+//======== Job : лёгкая единица исполнения одной команды ================================//
+	/** Выстрел команды: исполняется прямо в линии по протоколу {@link Shot}. Заодно
+	 * является узлом списка неисполненных команд. */
+	private final class Job extends Shot<Void> {
+		final Scheduled<?> task;
+		/** Поля списка команд, меняются под блокировкой исполнителя. */
+		Job prev, next;
+		boolean linked, canceled;
+
+		Job(AConveyor conveyor, Runnable command, Scheduled<?> task) {
+			super(conveyor, command); this.task = task; }
+
+		Runnable command() { return (Runnable)action; }
+
+		@Override boolean ready() { return !canceled; }
+
+		@Override void failed(Throwable error) {
+			conveyor.log.fault("Executor command failed", error); }
+
+		// Периодическая команда взводится заново только после выхода из исполнения
+		@Override void done() { if (canceled || task == null || !task.rearm()) unlink(this); }
+	}
+
+	/** Ожидание отложенной команды в хранителе времени. При пробуждении в конвейер
+	 * возвращается единица команды. */
+	private static final class Timing extends Entry.Waiting {
+		Timing(Job owner, long instant) { super(KindTimer, owner, 0); this.instant = instant; }
+
+		@Override @Nullable Unit wakeup() { return owner; }
+	}
+
+
+
+//======== Scheduled : будущее отложенной команды =======================================//
+	private final class Scheduled<V> extends FutureTask<V>
+			implements RunnableScheduledFuture<V> {
+		/** Период повтора в миллисекундах: больше нуля — строгий период, меньше нуля —
+		 * задержка после исполнения, ноль — разовая команда. */
+		private final long period;
+		Job    job;
+		Timing timing;
+
+		Scheduled(Runnable command, V result, long period) { super(command, result);
+			this.period = period; }
+		Scheduled(Callable<V> callable, long period) { super(callable);
+			this.period = period; }
+
+		@Override public boolean isPeriodic() { return period != 0; }
+
+		@Override public void run() {
+			if (!isPeriodic()) super.run();
+			else if (!runAndReset()) cancel(false); }
+
+		/** Взвести периодическую команду на следующий запуск.
+		 * @return false — команда разовая, отменена или исполнитель остановлен. */
+		boolean rearm() {
+			if (!isPeriodic() || isDone() || isShutdown()) return false;
+			timing.instant = period > 0 ? timing.instant + period
+					: System.currentTimeMillis() - period;
+			conveyor.append(timing);
+			return true; }
+
+		@Override public boolean cancel(boolean interrupt) {
+			boolean result = super.cancel(interrupt);
+			if (result && conveyor.remove(timing)) unlink(job);
+			return result; }
+
+		@Override public long getDelay(@NotNull TimeUnit unit) {
+			return unit.convert( timing.instant - System.currentTimeMillis(),
+					TimeUnit.MILLISECONDS ); }
+
+		@Override public int compareTo(@NotNull Delayed that) {
+			if (that == this) return 0;
+			long result = getDelay(TimeUnit.MILLISECONDS)
+					- that.getDelay(TimeUnit.MILLISECONDS);
+			return result < 0 ? -1 : result > 0 ? 1 : 0; }
+	}
+}
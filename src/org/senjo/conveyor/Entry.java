@@ -11,7 +11,9 @@ import static org.senjo.basis.Base.*;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
 import org.senjo.annotation.*;
 import org.senjo.basis.ABasketSync;
@@ -54,7 +56,7 @@ public class Entry extends ABasketSync {
 
 	@Abstract @Synchronized void onFinish() { }
 
-	private Entry(int kind, int stage) { push(kind); this.stage = stage; }
+	Entry(int kind, int stage) { push(kind); this.stage = stage; }
 
 	/** @return true — требуется дописать ещё stage */
 	@Abstract boolean print(Log.Buffer out) {
@@ -107,13 +109,21 @@ public class Entry extends ABasketSync {
 	static final int KindDeferral  = 1<<fin+1 | σWaiting; //010.01
 	/** Зацикленная обработка — тип этапа задачи. */
 	static final int KindLoop      = 2<<fin+1 | σWaiting; //010.10
+	/** Системное вхождение. Доставляет решение {@link Promise} в линию конвейера задачи,
+	 * чтобы обработчики завершения исполнялись в её конвейере. */
+	static final int KindPromise   = 0<<fin+1 | σOverride;          //100.00
+	/** Системное вхождение. Передаёт задаче владение асинхронной блокировкой
+	 * {@link AsyncLock} или разрешение {@link AsyncSemaphore} и вызывает этап, который
+	 * его ждал. */
+	static final int KindGrant     = 1<<fin+1 | σOverride;          //100.01
+	/** Системное вхождение. Выносит блокирующий этап задачи в отдельный конвейер
+	 * {@link Offload} и возвращает его результат задаче. */
+	static final int KindOffload   = 2<<fin+1 | σOverride;          //100.10
 	/** Сбой в обработке задачи — тип этапа задачи. */
 	static final int KindCrash     = 0<<fin+1 | σWaiting|σOverride; //110.00
-	/** Таймаут обработки задачи — тип этапа задачи. При его наступлении задача будет
-	 * принудительно завершена с соответствующей ошибкой (Timeout). Таймаут имеет свой
-	 * обработчик пробуждения. Обработчик может в себе иметь другое время, более старшее,
-	 * или вообще быть уже ненужным. Он сам разберётся: будить задачу, вернуть таймер или
-	 * просто удалиться. */
+	/** Таймаут ожидания квитка — тип этапа задачи. Таймаут имеет свой обработчик
+	 * пробуждения и сам разберётся: будить задачу этапом {@link Plan#$Timeout} или просто
+	 * удалиться, если решение квитка успело раньше. */
 	static final int KindTimeout   = 1<<fin+1 | σWaiting|σOverride; //110.01
 
 
@@ -150,6 +160,12 @@ public class Entry extends ABasketSync {
 		@Nullable Unit wakeup() {
 			return owner.appendEntryAndCheckQueue(this) ? owner : null; }
 
+		/** Вхождение отдано хранителю времени, вызывается конвейером. */
+		void armed() { }
+		/** Вхождение отозвано или отработало последний раз и больше не вернётся к хранителю
+		 * времени. */
+		void dropped() { }
+
 		@Override public int compareTo(Waiting that) {
 			long result = this.instant - that.instant;
 			return result < 0 ? -1 : result > 0 ? 1 : 0; }
@@ -163,12 +179,35 @@ public class Entry extends ABasketSync {
 //			return "Wait:" + (instant&0xFFFF); }
 	}
 
-	/** Таймаут для выполнения задачи. При наступлении заданного времени закрывает задачу
-	 * с ошибкой. Таймаут можно менять. Также при завершении задачи таймаут желательно
-	 * удалить из очереди таймеров. Таймаут системное вхождение и может существовать
-	 * только в одном экземпляре. */
-	static final class Timeout extends Waiting {
-		Timeout(Unit owner) { super(KindTimeout, owner, 0); }
+	/** Таймаут ожидания квитка, см. {@link Plan#await(ITicket, int)}. Таймаут подписывается
+	 * к квитку вместо задачи и лежит в хранителе времени. Кто сработает первым, тот и будит
+	 * задачу: решение квитка снимает таймер и передаёт задаче обычный сигнал, а наступление
+	 * срока вызывает у задачи этап {@link Plan#$Timeout}, поздний сигнал квитка при этом
+	 * игнорируется. */
+	static final class Timeout<Target> extends Waiting implements IEmployer<Target> {
+		final ITicket<Target> ticket;
+
+		Timeout(Plan<Target> owner, ITicket<Target> ticket, int millis) {
+			super(KindTimeout, owner, Plan.$Timeout);
+			this.ticket  = ticket;
+			this.instant = System.currentTimeMillis() + millis; }
+
+		@SuppressWarnings("unchecked")
+		@Override public void signal(ITicket<Target> ticket) {
+			if (!pushSync(Fired)) return;
+			owner.conveyor.remove(this);
+			((Plan<Target>)owner).signal(ticket); }
+
+		@Override @Nullable Unit wakeup() {
+			return pushSync(Fired) ? super.wakeup() : null; }
+
+		@Override int inwork(Line line) { return line.process((Plan<?>)owner, this, stage); }
+
+		@Override boolean print(Log.Buffer out) { out.add("stage $Timeout"); return false; }
+
+		protected static final int fin = Entry.fin-1;
+		/** Таймаут уже сработал или решение квитка уже передано задаче. */
+		private static final int Fired = 1<<fin+1;
 	}
 
 	public static class Timer extends Waiting {
@@ -198,6 +237,10 @@ public class Entry extends ABasketSync {
 		}
 
 		final int range;
+		/** Привязка задачи-владельца к журналу, null — таймер не журналируется. */
+		@Nullable Journal.Binding<?> durable;
+		/** Номер таймера в журнале, 0 — таймер ещё не записан. */
+		long serial;
 
 		Timer(int range, Type type, Unit owner, int stage) {
 			this(KindTimer, System.currentTimeMillis() + range, range, type, owner, stage); }
@@ -214,7 +257,8 @@ public class Entry extends ABasketSync {
 				instant = System.currentTimeMillis();
 				instant += (type != Type.Regular) ? range : range - instant % range; }
 			this.instant = instant;
-			this.range   = range  ; }
+			this.range   = range  ;
+			if (owner instanceof Plan) durable = ((Plan<?>)owner).durable; }
 
 /*FIXME Сделать отдельный метод, который инициализирует время срабатывания, причём для
  * строгого Regular при отсутствии начального времени он будет отсчитывать он нулевого
@@ -223,16 +267,32 @@ public class Entry extends ABasketSync {
 //FIXME Таймеры могут быть уже наступившие, их не нужно добавлять в очередь таймеров.
 
 		@Naive @Override int resume() {
-			if (empty(Repeating)) return Unit.ApplyNone;
+			if (empty(Repeating)) { dropped(); return Unit.ApplyNone; }
 			long now = System.currentTimeMillis();
 			switch (mask(μType)) {
 			case TypeInterval: instant = now + range; break;
 			case TypePeriod  : if ((instant += range) <= now) return Unit.ApplyWork; break;
 			case TypeRegular : instant = now - now % range + range; break;
-			default: return Unit.ApplyNone; }
+			default: dropped(); return Unit.ApplyNone; }
 			return Unit.ApplyWait;
 		}
 
+		@Override void armed() {
+			Journal.Binding<?> durable = this.durable;
+			if (durable != null) durable.journal.arm(this); }
+
+		@Override void dropped() {
+			Journal.Binding<?> durable = this.durable;
+			if (durable != null) durable.journal.done(this); }
+
+		final Type type() { switch (mask(μType)) {
+			case TypeDelay   : return Type.Delay   ;
+			case TypeUntil   : return Type.Until   ;
+			case TypeInterval: return Type.Interval;
+			case TypePeriod  : return Type.Period  ;
+			case TypeRegular : return Type.Regular ;
+			default          : return Type.Sleep   ; } }
+
 		/** Отменить данный таймер. */
 		public void cancel() { owner.conveyor.remove(this); }
 
@@ -290,7 +350,9 @@ public class Entry extends ABasketSync {
 
 		Deferred(Unit owner, Type type, Target target, int stage, long instant, int range) {
 			super(KindDeferral, instant, range, type, owner, stage);
-			this.target = target; }
+			this.target = target;
+			// Цель пишется в журнал кодеком задачи, без кодека таймер живёт только в памяти
+			if (durable != null && durable.codec == null) durable = null; }
 	}
 
 	public static final class Loop extends Waiting {
@@ -533,6 +595,9 @@ public class Entry extends ABasketSync {
 		 * списка ресурсы, которые нужно закрыть по завершении одного этапа задачи (любой выход
 		 * из метода {@link #work(int)}). */
 		ArrayList<AutoCloseable> watch;
+		/** Пачки схлопываемых сигналов, по одной на каждый этап в режиме
+		 * {@link Plan#coalesce(int)}. */
+		Batch<?>[] batches;
 
 		Extension(Unit owner) { super(KindExtension, 0);
 			looper = new Loop(owner, Unit.$Loop); }
@@ -626,6 +691,28 @@ public class Entry extends ABasketSync {
 				return false;
 			} finally { unsync(); target.close(); } }
 
+		/** Находит пачку схлопываемых сигналов указанного этапа.
+		 * @return пачка или null, если этап не схлопывается. */
+		@Synchronized Batch<?> batch(int stage) {
+			try { sync(); return _batch(stage); } finally { unsync(); } }
+
+		@Naive private final Batch<?> _batch(int stage) {
+			if (batches != null) for (Batch<?> batch : batches) if (batch.stage == stage)
+				return batch;
+			return null; }
+
+		/** Включает схлопывание сигналов этапа, если оно ещё не включено. */
+		@Synchronized Batch<?> coalesce(int stage) { try { sync();
+			Batch<?> result = _batch(stage);
+			if (result != null) return result;
+			result = new Batch<>(looper.owner, stage);
+			if (batches == null) batches = new Batch<?>[] { result };
+			else {
+				batches = Arrays.copyOf(batches, batches.length + 1);
+				batches[batches.length-1] = result; }
+			return result;
+		} finally { unsync(); } }
+
 		private final void fault(String message, Throwable error) {
 			looper.owner.conveyor.log.fault(message, error); }
 
@@ -660,6 +747,57 @@ public class Entry extends ABasketSync {
 			return common; }
 	}
 
+	/** Сигнал провального решения квитка. Цели у него нет, этап получает сам квиток через
+	 * {@link Plan#ticket()}. */
+	static final class Reply<Target> extends Signal<Target> {
+		final ITicket<Target> ticket;
+
+		Reply(ITicket<Target> ticket) { super(null, Plan.$Signal); this.ticket = ticket; }
+	}
+
+	/** Пачка схлопнутых сигналов одного этапа. Пока пачка стоит в очереди задачи, новые
+	 * сигналы этого этапа не порождают новых вхождений, а дописываются в пачку. Этап
+	 * вызывается один раз на всю пачку и разбирает её через {@link Plan#targets()}.
+	 * Сигналы поступившие во время обработки этапа попадут в следующую пачку.
+	 * <p/>Пачку, как и {@link Storage}, этап обязан разобрать: если в ней остались
+	 * сигналы, то этап будет вызван снова. */
+	@SuppressWarnings("unchecked")
+	static final class Batch<Target> extends Entry {
+		private final Unit owner;
+		/** Накапливаемые сигналы, пишутся под синхронизацией пачки. */
+		private ArrayList<Target> pending = new ArrayList<>();
+		/** Выданные этапу сигналы, их читает и меняет только линия задачи. */
+		private ArrayList<Target> current = new ArrayList<>();
+
+		Batch(Unit owner, int stage) { super(KindStorage, stage); this.owner = owner; }
+
+		@Synchronized void add(Object target) { try { sync();
+			pending.add((Target)target);
+			if (push(Queued)) owner.appendEntryAndPushQueue(this);
+		} finally { unsync(); } }
+
+		/** Выдаёт этапу все накопленные сигналы. Повторный вызов в том же этапе вернёт
+		 * те же сигналы и дополнит их поступившими за это время. */
+		@Synchronized List<Target> drain() { try { sync();
+			if (current.isEmpty()) {
+				ArrayList<Target> swap = current; current = pending; pending = swap;
+			} else { current.addAll(pending); pending.clear(); }
+			return current;
+		} finally { unsync(); } }
+
+		@Override int resume() { try { sync();
+			current.clear();
+			if (!pending.isEmpty()) return Unit.ApplyWork;
+			take(Queued); return Unit.ApplyNone;
+		} finally { unsync(); } }
+
+		@Override boolean print(Log.Buffer out) { out.add("entry Batch"); return true; }
+
+		protected static final int fin = Entry.fin-1;
+		/** Пачка лежит в очереди задачи или в настоящий момент обрабатывается. */
+		private static final int Queued = 1<<fin+1;
+	}
+
 //XXX По необходимости добавить сюда Call, Handle и т.п.
 
 	/* Содержит в себе признак, стоит ли он в очереди внутри задачи. Задача снимает признак,
@@ -668,6 +806,10 @@ public class Entry extends ABasketSync {
 	public static final class Storage<Target> extends Entry implements IEmployer<Target> {
 		private final Unit owner;
 		private final ArrayDeque<Object> queue = new ArrayDeque<>();
+		/** Обработчик окончания этапа разбора хранилища, см. {@link #onResume(Runnable)}. */
+		private volatile Runnable listener;
+		/** Привязка хранилища к журналу, null — хранилище не журналируется. */
+		@Nullable private Journal.Binding<Target> durable;
 
 		public Storage(Unit owner, int stage) { this(owner, stage, true); }
 		public Storage(Unit owner, int stage, boolean enabled) { super(KindStorage, stage);
@@ -680,12 +822,39 @@ public class Entry extends ABasketSync {
 		public final void disable() { takeSync(Enabled); }
 
 		@Override int resume() {
+			int result;
 			try { sync();
-				if (exist(Enabled) && !queue.isEmpty()) return Unit.ApplyWork;
-				else { take(Queued); return Unit.ApplyNone; }
+				if (exist(Enabled) && !queue.isEmpty()) result = Unit.ApplyWork;
+				else { take(Queued); result = Unit.ApplyNone; }
 			} finally {
 				owner.conveyor.log.trace("SignalSet#resume: " + exist(Queued) ); 
-				unsync(); } }
+				unsync(); }
+			Runnable listener = this.listener;
+			if (listener != null) listener.run();
+			return result; }
+
+		/** Назначить обработчик, который вызывается в линии задачи после каждого этапа
+		 * разбора хранилища. Через него поставщик узнаёт, что в хранилище освободилось
+		 * место, например для запроса новых данных с обратным давлением. */
+		public void onResume(@Nullable Runnable listener) { this.listener = listener; }
+
+		/** Сделать хранилище долговременным: положенные в него элементы пишутся в журнал
+		 * кодеком и после перезапуска восстанавливаются {@link Journal#replay()}. Номер
+		 * хранилища должен совпадать между запусками. Элементы с ошибкой в журнал не
+		 * попадают, а писать в долговременное хранилище через {@link #write()} нельзя. */
+		public void durable( @NotNull Journal journal, long id,
+				@NotNull Journal.Codec<Target> codec ) {
+			durable = journal.bind(id, this, codec); }
+
+		/** Разом положить восстановленные из журнала элементы, не записывая их заново. */
+		void restore(@NotNull List<Target> targets) {
+			try { sync();
+				queue.addAll(targets);
+				if (!queue.isEmpty()) _wakeup();
+			} finally { unsync(); } }
+
+		/** Число элементов в хранилище, включая элементы с ошибкой. */
+		public int size() { try { sync(); return queue.size(); } finally { unsync(); } }
 
 		@Override public void signal(ITicket<Target> ticket) {
 			Object target;
@@ -722,7 +891,12 @@ public class Entry extends ABasketSync {
 //		}
 
 		@Synchronized private final void _syncPushAndWakeup(Object target) {
-			try { sync(); queue.offer(target); _wakeup(); } finally { unsync(); } }
+			try { sync();
+				// Журнал пишется под блокировкой, чтобы порядок записей совпал с очередью
+				if (durable != null && !(target instanceof ErrorBox))
+					durable.journal.push(durable, (Target)target);
+				queue.offer(target); _wakeup();
+			} finally { unsync(); } }
 
 		@Naive private final void _wakeup() {
 			boolean mode;
@@ -738,7 +912,8 @@ public class Entry extends ABasketSync {
 		@Naive private final Target _take() { do {
 			Object target = queue.poll();
 			if (target instanceof ErrorBox) continue;
-			else return (Target)target;
+			if (target != null && durable != null) durable.journal.take(durable);
+			return (Target)target;
 		} while (true); }
 
 		@Override boolean print(Log.Buffer out) { out.add("entry Storage"); return true; }
@@ -759,7 +934,7 @@ public class Entry extends ABasketSync {
 		private static final int Queued     = 1<<fin+3;
 
 
-		private static class ErrorBox {
+		static class ErrorBox {
 			final Exception error;
 			ErrorBox(ITicket ticket) { error = ticket.error(); }
 			Status status() { return error instanceof InterruptedException
@@ -810,12 +985,16 @@ public class Entry extends ABasketSync {
 				Object target = owner.queue.poll();
 				if (target instanceof ErrorBox)
 					throw new RuntimeException( ((ErrorBox)target).error );
+				if (target != null && owner.durable != null)
+					owner.durable.journal.take(owner.durable);
 				return (Target)target;
 			}
 		}
 
 		public static final class Writer<Target> extends Broker {
 			private Writer(Storage<Target> owner) { super(owner);
+				if (owner.durable != null) { super.close();
+					throw new IllegalStateException("Durable storage can't be written"); }
 				if (owner.queue.isEmpty() && owner.exist(Enabled)) owner.push(WriteEmpty); }
 
 			public void push(Target target) { owner.queue.push(target); }
@@ -0,0 +1,95 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import org.senjo.annotation.*;
+import org.senjo.support.Log;
+
+/** Асинхронная операция чтения или записи файла, решение которой приходит задаче
+ * вхождением этапа. Обработчик завершения {@link AsynchronousFileChannel} исполняется
+ * во внутреннем пуле JDK, но ничего в нём не делает, кроме добавления этого вхождения задаче,
+ * а вся обработка результата идёт в этапе задачи в её конвейере. Так задача может держать
+ * в полёте много операций ввода-вывода, не занимая линии ожиданием.
+ * <pre>
+ * case $Start:
+ *     read(channel, 0, $Read);
+ *     return $Default$;
+ * case $Read:
+ *     FileIo io = completed();
+ *     if (io.isEof()) { io.release(); return $Finish$; }
+ *     ... // Разбор io.buffer()
+ *     read(channel, io.position() + io.bytes(), $Read);
+ *     io.release();
+ *     return $Default$;</pre>
+ * Буфер операции, взятый из пула конвейера {@link AConveyor#buffers()}, нужно вернуть
+ * методом {@link #release()}, иначе он просто достанется сборщику мусора.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public final class FileIo extends Entry implements CompletionHandler<Integer, Void> {
+	private final Unit       owner;
+	private final ByteBuffer buffer;
+	private final long       position;
+	/** Операция чтения, буфер нужно перевернуть для разбора. */
+	private final boolean    read;
+	/** Пул, из которого взят буфер, или null для буфера задачи. */
+	@Nullable private BufferPool pool;
+	private volatile int       bytes;
+	private volatile Throwable error;
+
+	FileIo( Unit owner, ByteBuffer buffer, @Nullable BufferPool pool, long position,
+			boolean read, int stage ) {
+		super(KindSignal, stage);
+		this.owner    = owner   ; this.buffer = buffer; this.pool = pool;
+		this.position = position; this.read   = read  ; }
+
+	/** Начать чтение файла в буфер с указанной позиции. */
+	static FileIo read( @NotNull Unit owner, @NotNull AsynchronousFileChannel channel,
+			@NotNull ByteBuffer buffer, @Nullable BufferPool pool, long position,
+			int stage ) {
+		FileIo result = new FileIo(owner, buffer, pool, position, true, stage);
+		try { channel.read(buffer, position, null, result); }
+		catch (RuntimeException ex) { result.failed(ex, null); }
+		return result; }
+
+	/** Начать запись буфера в файл с указанной позиции. */
+	static FileIo write( @NotNull Unit owner, @NotNull AsynchronousFileChannel channel,
+			@NotNull ByteBuffer buffer, long position, int stage ) {
+		FileIo result = new FileIo(owner, buffer, null, position, false, stage);
+		try { channel.write(buffer, position, null, result); }
+		catch (RuntimeException ex) { result.failed(ex, null); }
+		return result; }
+
+	@Override public void completed(Integer result, Void attachment) {
+		if (read) buffer.flip();
+		bytes = result; owner.appendEntryAndPushQueue(this); }
+
+	@Override public void failed(Throwable error, Void attachment) {
+		this.error = error; bytes = -1; owner.appendEntryAndPushQueue(this); }
+
+	/** Буфер операции. После чтения он уже перевёрнут для разбора данных. */
+	public ByteBuffer buffer() { return buffer; }
+	/** Позиция в файле, с которой началась операция. */
+	public long position() { return position; }
+	/** Число прочитанных или записанных байт, -1 — конец файла или ошибка. */
+	public int bytes() { return bytes; }
+	/** Чтение упёрлось в конец файла. */
+	public boolean isEof() { return bytes < 0 && error == null; }
+	/** Ошибка операции или null. */
+	public Throwable error() { return error; }
+
+	/** Вернуть буфер операции в пул конвейера. После этого буфер использовать нельзя. */
+	public void release() {
+		BufferPool pool = this.pool;
+		if (pool != null) { this.pool = null; pool.give(buffer); } }
+
+	@Override boolean print(Log.Buffer out) { out.add("entry FileIo"); return true; }
+}
@@ -0,0 +1,93 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.senjo.annotation.*;
+import org.senjo.conveyor.Entry.Storage;
+
+/** Потоковый приёмник файла. Накапливает выходные буферы в своём хранилище и пишет их
+ * в файл пачками одной собирающей записью {@link FileChannel#write(ByteBuffer[])}, так
+ * множество мелких буферов стоит одного системного вызова. Запись идёт позиционно от
+ * начальной позиции, которая задаётся при создании.
+ * <p/>Буферы пишутся в порядке поступления. Для обратного давления поставщик может
+ * смотреть на {@link #pending()}. Закрытие {@link #close()} дописывает всё накопленное,
+ * закрывает файл и решает квиток {@link #done()} числом записанных байт.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public class FileSink extends Task<Object> {
+	private final FileChannel channel;
+	private final Storage<ByteBuffer> input;
+	private final ByteBuffer[] batch;
+	private final Ticket<Long> done = new Ticket<>();
+	/** Позиция в файле следующей записи. */
+	private long position;
+	private long written;
+
+	/** @param batch   — наибольшее число буферов в одной собирающей записи;
+	 * @param options — режимы открытия файла, режим записи добавляется сам. */
+	public FileSink( @NotNull AConveyor conveyor, @NotNull Path path, long position,
+			int batch, OpenOption... options ) throws IOException {
+		super(conveyor);
+		if (batch < 1) throw new IllegalArgumentException("Batch must be positive");
+		this.batch    = new ByteBuffer[batch];
+		this.position = position;
+		OpenOption[] modes = Arrays.copyOf(options, options.length + 1);
+		modes[options.length] = StandardOpenOption.WRITE;
+		this.channel  = watchEx(FileChannel.open(path, modes));
+		this.input    = new Storage<>(this, $Write); }
+
+	/** Записать буфер в файл. Буфер нельзя менять до его записи. */
+	public void push(@NotNull ByteBuffer buffer) { input.push(buffer); }
+
+	/** Число буферов, ожидающих записи. */
+	public int pending() { return input.size(); }
+
+	/** Дописать накопленное и закрыть файл. */
+	public void close() { call($Close); }
+
+	/** Квиток окончания записи, решается числом записанных байт. */
+	public ITicket<Long> done() { return done; }
+
+	@Override protected int work(int stage) throws IOException { switch (stage) {
+	case $Write: flush(); return $Default$;
+	case $Close: flush(); done.complete(written); return $Finish$;
+	default: return $Unknown$; } }
+
+	@Override protected int error(Exception error, boolean nested) {
+		done.fail(error); return $Finish$; }
+
+	/** Слить хранилище в файл пачками собирающих записей. */
+	@Naive private final void flush() throws IOException {
+		ByteBuffer[] batch = this.batch;
+		int count;
+		do {
+			ByteBuffer buffer;
+			long bytes = 0;
+			for (count = 0; count != batch.length; ++count) {
+				if ((buffer = input.take()) == null) break;
+				batch[count] = buffer; bytes += buffer.remaining(); }
+			if (count == 0) return;
+			// Позиционная запись: канал ставится на позицию пачки, запись дописывает всё
+			channel.position(position);
+			for (long remain = bytes; remain > 0; ) remain -= channel.write(batch, 0, count);
+			position += bytes; written += bytes;
+			Arrays.fill(batch, 0, count, null);
+		} while (count == batch.length);
+	}
+
+	private static final int $Write = 1;
+	private static final int $Close = 2;
+}
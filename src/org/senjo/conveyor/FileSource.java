@@ -0,0 +1,130 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import org.senjo.annotation.*;
+import org.senjo.conveyor.Entry.Storage;
+
+/** Потоковый источник файла. Отображает файл в память сегментами, режет сегмент на куски,
+ * выровненные по границам записей, и кладёт куски в хранилище задачи-потребителя. Куски —
+ * это срезы отображения, т.е. данные попадают к потребителю прямо из страничного кеша без
+ * копирования.
+ * <p/>Источник соблюдает обратное давление: в хранилище потребителя одновременно лежит
+ * не более {@code capacity} кусков. Заполнив хранилище, источник засыпает, а разбор
+ * хранилища потребителем сам будит его через {@link Storage#onResume(Runnable)}.
+ * <p/>Запись — это последовательность байт, оканчивающаяся разделителем. Кусок всегда
+ * заканчивается разделителем, кроме последнего куска файла. Запись длиннее сегмента
+ * отображения режется границей сегмента.
+ * <p/>Квиток {@link #done()} решается числом прочитанных байт после выдачи последнего
+ * куска или ошибкой чтения файла.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public class FileSource extends Task<Object> {
+	private static final AtomicIntegerFieldUpdater<FileSource> Waiting =
+			AtomicIntegerFieldUpdater.newUpdater(FileSource.class, "waiting");
+	/** Размер сегмента отображения по умолчанию. */
+	public static final int DefaultSegment = 64 << 20;
+
+	private final FileChannel         channel;
+	private final Storage<ByteBuffer> target;
+	private final int  capacity, chunk, segment;
+	private final byte delimiter;
+	private final Ticket<Long> done = new Ticket<>();
+
+	/** Источник ждёт разбора хранилища потребителем, его нужно разбудить. */
+	private volatile int waiting;
+	/** Текущий отображённый сегмент или null, если его нужно отобразить. */
+	private MappedByteBuffer mapped;
+	/** Позиция в файле начала текущего сегмента и общий размер файла. */
+	private long offset, size;
+
+	/** @param target    — хранилище задачи-потребителя, в которое кладутся куски;
+	 * @param capacity  — сколько кусков одновременно может лежать в хранилище;
+	 * @param chunk     — желаемый размер куска, кусок дополняется до конца записи;
+	 * @param delimiter — байт окончания записи, например {@code '\n'}. */
+	public FileSource( @NotNull AConveyor conveyor, @NotNull Path path,
+			@NotNull Storage<ByteBuffer> target, int capacity, int chunk, byte delimiter )
+			throws IOException {
+		this(conveyor, path, target, capacity, chunk, delimiter, DefaultSegment); }
+
+	/** @param segment — размер сегмента отображения файла. */
+	public FileSource( @NotNull AConveyor conveyor, @NotNull Path path,
+			@NotNull Storage<ByteBuffer> target, int capacity, int chunk, byte delimiter,
+			int segment ) throws IOException {
+		super(conveyor);
+		if (capacity < 1 || chunk < 1 || segment < chunk)
+			throw new IllegalArgumentException("Wrong capacity, chunk or segment size");
+		this.target   = target  ; this.capacity  = capacity ;
+		this.chunk    = chunk   ; this.delimiter = delimiter; this.segment = segment;
+		this.channel  = watchEx(FileChannel.open(path, StandardOpenOption.READ));
+		this.size     = channel.size();
+		target.onResume(this::resume);
+		start(); }
+
+	/** Квиток окончания чтения, решается числом прочитанных байт. */
+	public ITicket<Long> done() { return done; }
+
+	@Override protected int work(int stage) throws IOException { switch (stage) {
+	case $Start: case $Run:
+		do {
+			while (target.size() < capacity) {
+				ByteBuffer chunk = next();
+				if (chunk == null) { done.complete(size); return $Finish$; }
+				target.push(chunk); }
+			// Хранилище заполнено, ждём его разбора, если его не разобрали только что
+			waiting = 1;
+		} while (target.size() < capacity && Waiting.compareAndSet(this, 1, 0));
+		return $Default$;
+	default: return $Unknown$; } }
+
+	@Override protected int error(Exception error, boolean nested) {
+		done.fail(error); return $Finish$; }
+
+	/** Потребитель разобрал хранилище. Вызывается в линии потребителя, поэтому источник
+	 * только ставит себе этап и сразу возвращается. */
+	private void resume() {
+		if (waiting == 1 && target.size() < capacity && Waiting.compareAndSet(this, 1, 0))
+			call($Run); }
+
+	/** Следующий кусок файла или null, если файл прочитан. */
+	@Naive private final ByteBuffer next() throws IOException {
+		MappedByteBuffer mapped = this.mapped;
+		if (mapped == null || !mapped.hasRemaining()) {
+			long position = mapped == null ? offset : offset + mapped.limit();
+			if (position >= size) return null;
+			offset = position;
+			this.mapped = mapped = channel.map( FileChannel.MapMode.READ_ONLY, position,
+					Math.min(segment, size - position) ); }
+
+		int begin = mapped.position(), limit = mapped.limit();
+		int end = Math.min(begin + chunk, limit);
+		// Дотянуть кусок до конца записи в пределах сегмента
+		while (end < limit && mapped.get(end - 1) != delimiter) ++end;
+		// Незаконченная запись в конце сегмента переносится в следующий сегмент
+		if (end == limit && offset + limit < size && mapped.get(end - 1) != delimiter) {
+			int back = end;
+			while (back > begin && mapped.get(back - 1) != delimiter) --back;
+			if (back > begin) { end = back; mapped.limit(end); }
+			// Запись целиком не влезла в остаток сегмента, отобразить её с начала
+			else if (begin > 0) { mapped.limit(begin); return next(); } }
+
+		ByteBuffer result = mapped.duplicate();
+		result.position(begin).limit(end);
+		mapped.position(end);
+		return result.slice(); }
+
+	private static final int $Run = 1;
+}
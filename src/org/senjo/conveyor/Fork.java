@@ -0,0 +1,142 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.BinaryOperator;
+import org.senjo.annotation.*;
+import org.senjo.basis.ABasketSync;
+
+/** Распараллеливание обработки диапазона из этапа задачи. Диапазон режется на куски
+ * по {@code grain} элементов, свободные линии конвейера получают помощников, которые
+ * разбирают куски через общий курсор, а текущая линия сама разбирает куски вместе с ними.
+ * Никто никого не ждёт: разобрав свои куски, линия просто уходит к следующей задаче,
+ * а последний завершённый кусок ставит задаче этап соединения.
+ * <pre>
+ * case $Start:
+ *     sum = Fork.reduce(this, 0, data.length, 4096, this::sumPart, Long::sum, $Join);
+ *     return $Default$;
+ * case $Join:
+ *     total = sum.result();
+ *     ...</pre>
+ * Частичные результаты соединяются в произвольном порядке, поэтому функция соединения
+ * должна быть ассоциативной и коммутативной. Первая ошибка куска запоминается и доступна
+ * в этапе соединения через {@link #error()}, остальные куски при этом всё равно
+ * разбираются.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public final class Fork<Target> extends ABasketSync implements Runnable {
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<Fork> Cursor =
+			AtomicIntegerFieldUpdater.newUpdater(Fork.class, "cursor");
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<Fork> Remain =
+			AtomicIntegerFieldUpdater.newUpdater(Fork.class, "remain");
+
+	private final Plan<?> owner;
+	private final int     stage;
+	private final int     from, to, grain;
+	/** Общее число кусков. Курсор может уйти за него, т.к. его двигают все участники. */
+	private final int     chunks;
+	private final Part<? extends Target>   part;
+	private final BinaryOperator<Target> combine;
+
+	/** Номер следующего неразобранного куска. */
+	private volatile int cursor;
+	/** Число ещё не завершённых кусков. */
+	private volatile int remain;
+
+	private Target    result;
+	private Exception error ;
+
+	private Fork( Plan<?> owner, int stage, int from, int to, int grain,
+			Part<? extends Target> part, BinaryOperator<Target> combine ) {
+		if (grain < 1) throw new IllegalArgumentException("Grain must be positive");
+		this.owner = owner; this.stage = stage;
+		this.from  = from ; this.to    = Math.max(from, to); this.grain = grain;
+		this.part  = part ; this.combine = combine;
+		this.remain = chunks = (int)(((long)this.to - from + grain - 1) / grain); }
+
+	/** Обработать диапазон [from, to) по кускам на линиях конвейера задачи.
+	 * @param owner — задача, которая вызывает распараллеливание из своего этапа;
+	 * @param grain — размер куска, т.е. наименьшая единица работы одной линии;
+	 * @param body  — обработчик куска [from, to);
+	 * @param stage — этап соединения, он будет вызван задаче после обработки всех кусков. */
+	public static Fork<Void> each( @NotNull Plan<?> owner, int from, int to, int grain,
+			@NotNull Body body, int stage ) {
+		Fork<Void> result = new Fork<>( owner, stage, from, to, grain,
+				(begin, end) -> { body.run(begin, end); return null; }, null );
+		result.fork(); return result; }
+
+	/** Вычислить значение по диапазону [from, to) по кускам на линиях конвейера задачи.
+	 * Соединённый результат доступен в этапе соединения через {@link #result()}.
+	 * @param part    — вычисление частичного результата куска [from, to);
+	 * @param combine — соединение двух частичных результатов;
+	 * @see #each(Plan, int, int, int, Body, int) */
+	public static <Target> Fork<Target> reduce( @NotNull Plan<?> owner, int from, int to,
+			int grain, @NotNull Part<? extends Target> part,
+			@NotNull BinaryOperator<Target> combine, int stage ) {
+		Fork<Target> result = new Fork<>(owner, stage, from, to, grain, part, combine);
+		result.fork(); return result; }
+
+	/** Соединённый результат всех кусков, null если кусков не было. */
+	@Synchronized public Target result() {
+		try { sync(); return result; } finally { unsync(); } }
+
+	/** Первая ошибка обработки куска или null. */
+	@Synchronized public Exception error() {
+		try { sync(); return error; } finally { unsync(); } }
+
+	/** Все куски обработаны и этап соединения уже поставлен задаче. */
+	public boolean isDone() { return remain == 0; }
+
+	/** Раздать помощников свободным линиям и самому разбирать куски. */
+	private final void fork() {
+		if (chunks == 0) { join(); return; }
+		AConveyor conveyor = owner.conveyor;
+		int width = conveyor instanceof MultiConveyor ? ((MultiConveyor)conveyor).width() : 1;
+		int helpers = Math.min(chunks, width) - 1;
+		while (--helpers >= 0) conveyor.execute(this);
+		run(); }
+
+	/** Разбор кусков помощником или вызвавшей линией, пока куски не кончатся. */
+	@Override public void run() {
+		int index;
+		while ((index = Cursor.getAndIncrement(this)) < chunks) {
+			int begin = (int)(from + (long)index * grain);
+			int end   = (int)Math.min((long)begin + grain, to);
+			Target value = null; Exception failure = null;
+			try { value = part.apply(begin, end); }
+			catch (Exception ex) { failure = ex; }
+			catch (Throwable ex) { failure = new ExecutionException(ex); }
+			accumulate(value, failure);
+			if (Remain.decrementAndGet(this) == 0) join(); }
+	}
+
+	@Synchronized private final void accumulate(Target value, Exception failure) {
+		try { sync();
+			if (failure != null) { if (error == null) error = failure; }
+			else if (value != null) result = result == null || combine == null
+					? value : combine.apply(result, value);
+		} finally { unsync(); } }
+
+	private final void join() { owner.appendEntryAndPushQueue(new Entry.Call(stage)); }
+
+
+
+//======== Part : обработчики куска диапазона ============================================//
+	/** Обработчик куска диапазона [from, to). */
+	@FunctionalInterface public interface Body {
+		void run(int from, int to) throws Exception; }
+
+	/** Вычисление частичного результата по куску диапазона [from, to). */
+	@FunctionalInterface public interface Part<Target> {
+		Target apply(int from, int to) throws Exception; }
+}
@@ -0,0 +1,137 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.senjo.annotation.*;
+import org.senjo.support.Log;
+
+/** Сборщик решений множества квитков (scatter-gather). Задача раздаёт множество
+ * подзапросов, складывает их квитки в сборщик и ждёт их все разом. Сигналы квитков
+ * задачу не будят, сборщик сам считает их и будит задачу ровно один раз, когда набрано
+ * нужное число успешных решений, когда все квитки решены или когда наступил срок ожидания.
+ * Так веер из сотен подзапросов стоит одно пробуждение задачи вместо сотен этапов.
+ * <p/>Сборщик одновременно является вхождением задачи и таймером срока, поэтому кроме
+ * списков результатов он ничего не создаёт. После пробуждения задачи сборщик больше
+ * не меняется, поздние решения квитков игнорируются.
+ * <p/>Пример: {@code Gather.all(this, $Gathered).addAll(tickets).deadline(500).await()},
+ * затем в этапе {@code $Gathered} разобрать {@link #results()} и {@link #failed()}.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public final class Gather<Target> extends Entry.Waiting implements IEmployer<Target> {
+	private final ArrayList<ITicket<Target>> tickets = new ArrayList<>();
+	private final ArrayList<Target>          results = new ArrayList<>();
+	private final ArrayList<ITicket<Target>> failed  = new ArrayList<>();
+	/** Требуемое число успешных решений, 0 — ждать все квитки. */
+	private final int need;
+	/** Число ещё не решённых квитков. */
+	private int remain;
+
+	private Gather(Plan<?> owner, int stage, int need) { super(KindTimer, owner, stage);
+		this.need = need; }
+
+	/** Ждать решения всех квитков, успешных и провальных. */
+	public static <Target> Gather<Target> all(@NotNull Plan<?> owner, int stage) {
+		return new Gather<>(owner, stage, 0); }
+
+	/** Ждать первого успешного решения. */
+	public static <Target> Gather<Target> any(@NotNull Plan<?> owner, int stage) {
+		return new Gather<>(owner, stage, 1); }
+
+	/** Ждать первых count успешных решений. Если столько успешных решений набрать уже
+	 * невозможно, то задача будет разбужена после решения последнего квитка. */
+	public static <Target> Gather<Target> first(@NotNull Plan<?> owner, int stage, int count) {
+		if (count < 1) throw new IllegalArgumentException("Count must be positive");
+		return new Gather<>(owner, stage, count); }
+
+	/** Добавить квиток к сбору. Квитки можно добавлять только до {@link #await()}. */
+	public Gather<Target> add(@NotNull ITicket<Target> ticket) {
+		try { sync();
+			if (exist(Armed)) throw new IllegalStateException("Gather is already awaited");
+			tickets.add(ticket);
+		} finally { unsync(); }
+		return this; }
+
+	public Gather<Target> addAll(@NotNull Iterable<? extends ITicket<Target>> tickets) {
+		for (ITicket<Target> ticket : tickets) add(ticket);
+		return this; }
+
+	/** Назначить срок ожидания. По его наступлении задача будет разбужена с тем, что уже
+	 * собрано, а {@link #isExpired()} вернёт true. */
+	public Gather<Target> deadline(int millis) {
+		instant = System.currentTimeMillis() + millis; return this; }
+
+	/** Начать ожидание: подписаться на все квитки и, если задан, завести таймер срока.
+	 * Если условие уже выполнено, то задача будет разбужена сразу. */
+	public Gather<Target> await() {
+		ITicket<Target>[] array;
+		try { sync();
+			if (!push(Armed)) throw new IllegalStateException("Gather is already awaited");
+			remain = tickets.size();
+			@SuppressWarnings("unchecked")
+			ITicket<Target>[] copy = (ITicket<Target>[])tickets.toArray(new ITicket<?>[remain]);
+			array = copy;
+			if (remain == 0) { _fire(); return this; }
+			if (instant != 0) owner.conveyor.append(this);
+		} finally { unsync(); }
+		for (ITicket<Target> ticket : array) ticket.sign(this);
+		return this; }
+
+	@Override public void signal(ITicket<Target> ticket) {
+		try { sync();
+			if (exist(Fired)) return;
+			if (ticket.status().isSuccess) results.add(ticket.take());
+			else failed.add(ticket);
+			--remain;
+			if (remain == 0 || need != 0 && results.size() >= need) {
+				if (instant != 0) owner.conveyor.remove(this);
+				_fire(); }
+		} finally { unsync(); } }
+
+	/** Срок ожидания наступил раньше, чем выполнилось условие сбора. */
+	@Override @Nullable Unit wakeup() {
+		try { sync();
+			if (!push(Fired)) return null;
+			push(Expired);
+		} finally { unsync(); }
+		return super.wakeup(); }
+
+	/** Успешные решения в порядке их поступления. Читать можно только из этапа задачи
+	 * после пробуждения. */
+	public List<Target> results() { return Collections.unmodifiableList(results); }
+
+	/** Квитки с провальным решением. */
+	public List<ITicket<Target>> failed() { return Collections.unmodifiableList(failed); }
+
+	/** Все квитки сбора. */
+	public List<ITicket<Target>> tickets() { return Collections.unmodifiableList(tickets); }
+
+	/** Сбор закончился по сроку ожидания. */
+	public boolean isExpired() { return existSync(Expired); }
+
+	/** Число квитков, решения которых не дошли до сборщика. */
+	public int remain() { try { sync(); return remain; } finally { unsync(); } }
+
+	@Naive private final void _fire() {
+		if (push(Fired)) owner.appendEntryAndPushQueue(this); }
+
+	@Override boolean print(Log.Buffer out) { out.add("entry Gather"); return true; }
+
+
+
+	protected static final int fin = Entry.fin-3;
+	/** Сборщик подписан на квитки, добавлять новые квитки нельзя. */
+	private static final int Armed   = 1<<fin+1;
+	/** Задача разбужена, дальнейшие решения игнорируются. */
+	private static final int Fired   = 1<<fin+2;
+	/** Задача разбужена по сроку ожидания. */
+	private static final int Expired = 1<<fin+3;
+}
@@ -0,0 +1,605 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import static org.senjo.basis.Helper.unsafe;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+import org.senjo.annotation.*;
+import org.senjo.basis.ABasketSync;
+import org.senjo.conveyor.Entry.Deferred;
+import org.senjo.conveyor.Entry.Storage;
+import org.senjo.conveyor.Entry.Timer;
+import org.senjo.conveyor.Entry.Waiting;
+import org.senjo.support.Config;
+import org.senjo.support.Log;
+
+/** Долговременный журнал таймеров и хранилищ. Взвод и отмена таймера, положение элемента
+ * в хранилище и его извлечение дописывают в журнал короткую запись, так после перезапуска
+ * процесса отложенная работа восстанавливается из журнала за один проход, а не собирается
+ * заново из внешней базы.
+ * <p/>Журнал — это отображённый в память файл, записи только дописываются в его конец.
+ * Тип записи пишется последним, поэтому оборванная падением процесса запись при чтении
+ * журнала просто не видна. Запись в отображение переживает падение процесса, но не системы;
+ * для этого есть {@link #flush()}.
+ * <p/>Весь файловый ввод-вывод делает собственный фоновый поток журнала, записи же идут
+ * из этапов задач под блокировкой хранилищ и не должны ждать диска. Фоновый поток заранее
+ * создаёт и отображает запасной файл. Уплотнение лишь переносит живые записи из памяти
+ * в память запасного файла и переключает журнал на него; закрытие старого файла, снятие
+ * его отображения, сброс на диск и атомарная подмена старого файла новым идут уже в фоне.
+ * Уплотнение запускается, когда файл заполнен на три четверти, и периодически, если
+ * мёртвые записи занимают больше живых. Только если фоновый поток не успел подготовить
+ * запасной файл, а место кончилось, запись ждёт его.
+ * <p/>Журналируются только задачи и хранилища, явно привязанные к журналу под постоянным
+ * номером: {@link Plan#durable(Journal, long)} и {@link Storage#durable(Journal, long,
+ * Codec)}. Порядок запуска такой:
+ * <pre>
+ * Journal journal = Journal.open(path, 64 << 20);
+ * ... // Создание задач и хранилищ с привязкой к журналу под прежними номерами
+ * journal.replay(); // Восстановить таймеры и элементы хранилищ пачками
+ * ... // Запуск задач</pre>
+ * Записи задач и хранилищ, которые не привязали до {@link #replay()}, считаются
+ * устаревшими и выбрасываются.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public final class Journal extends ABasketSync implements AutoCloseable {
+	private final Path path;
+	/** Запасной файл журнала, он же новый файл до подмены им старого. */
+	private final Path next;
+	/** Наименьший размер файла журнала. */
+	private final int  capacity;
+	/** Период проверки на уплотнение и сброса на диск в миллисекундах. */
+	private final int  period;
+	private final Thread keeper;
+	private final Log    log;
+	private FileChannel      channel;
+	private MappedByteBuffer memory;
+	/** Заранее созданный и отображённый запасной файл, null — ещё не подготовлен. */
+	@Nullable private FileChannel      spareChannel;
+	@Nullable private MappedByteBuffer spare;
+	/** Старый файл после уплотнения, ждёт фонового потока для закрытия и подмены. */
+	@Nullable private FileChannel      retiredChannel;
+	@Nullable private MappedByteBuffer retired;
+	/** Сколько места нужно записи, которая ждёт запасной файл. */
+	private int  need;
+	/** Позиция в журнале следующей записи. */
+	private int  position;
+	/** Размер живых записей вместе с заголовком. Ведётся на каждой записи, поэтому решение
+	 * об уплотнении не перебирает записи; полный проход делает только само уплотнение. */
+	private long live = Header;
+	/** Последний выданный номер таймера. */
+	private long serial;
+
+	/** Живые таймеры по их номерам. */
+	private final HashMap<Long, Mark> timers = new HashMap<>();
+	/** Позиции живых записей элементов хранилищ в порядке очереди каждого хранилища. */
+	private final HashMap<Long, ArrayDeque<Integer>> items = new HashMap<>();
+	/** Привязанные до восстановления задачи и хранилища по их номерам. */
+	private final HashMap<Long, Binding<?>> plans = new HashMap<>();
+	private final HashMap<Long, Binding<?>> storages = new HashMap<>();
+
+	private Journal(Path path, int capacity, int period) {
+		this.path = path; this.capacity = capacity; this.period = period;
+		this.next = path.resolveSibling(path.getFileName() + ".next");
+		this.log  = Config.log("conveyor.journal");
+		keeper = new Thread(this::run, "Journal «" + path.getFileName() + '»');
+		keeper.setDaemon(true); }
+
+	/** Открыть журнал с периодом обслуживания в одну минуту.
+	 * @see #open(Path, int, int) */
+	public static Journal open(@NotNull Path path, int capacity) throws IOException {
+		return open(path, capacity, Minute); }
+
+	/** Открыть журнал или создать новый. Существующий журнал сразу читается, уплотняется
+	 * фоновым потоком, но восстанавливается в конвейер только методом {@link #replay()}.
+	 * @param capacity — наименьший размер файла журнала в байтах;
+	 * @param period — период проверки на уплотнение и сброса на диск в миллисекундах. */
+	public static Journal open(@NotNull Path path, int capacity, int period)
+			throws IOException {
+		if (capacity < Header << 4)
+			throw new IllegalArgumentException("Journal capacity is too small");
+		if (period < 1) throw new IllegalArgumentException("Period must be positive");
+		Journal result = new Journal(path, capacity, period);
+		// Подписанный запасной файл уже принимал записи, но подменить старый не успел
+		if (isJournal(result.next)) Files.move( result.next, path,
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+		else Files.deleteIfExists(result.next);
+		boolean exist = Files.exists(path) && Files.size(path) > 0;
+		FileChannel channel = FileChannel.open( path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE );
+		try {
+			result.channel = channel;
+			result.memory  = channel.map( FileChannel.MapMode.READ_WRITE, 0,
+					Math.max(capacity, channel.size()) );
+			if (!exist) { result.memory.putInt(0, Magic); result.position = Header; }
+			else if (result.memory.getInt(0) != Magic)
+				throw new IOException("File is not a conveyor journal");
+			else { result.load(); result.push(WantCompact); }
+		} catch (IOException | RuntimeException ex) {
+			channel.close(); unmap(result.memory); throw ex; }
+		result.push(WantSpare);
+		result.keeper.start();
+		return result; }
+
+	/** Восстановить таймеры привязанных задач и элементы привязанных хранилищ. Таймеры
+	 * отдаются хранителям времени конвейеров, а элементы хранилищам, пачками за одну
+	 * блокировку. Вызывается один раз, после привязки и до запуска задач. */
+	@Synchronized public void replay() {
+		HashMap<AConveyor, ArrayList<Waiting>> waits = new HashMap<>();
+		ArrayList<Storage<Object>> targets = new ArrayList<>();
+		ArrayList<ArrayList<Object>> lists = new ArrayList<>();
+		try { sync();
+			if (exist(Closed)) throw new IllegalStateException("Journal is closed");
+			if (!push(Replayed)) throw new IllegalStateException("Journal is replayed");
+			for (Iterator<Map.Entry<Long, Mark>> it = timers.entrySet().iterator();
+					it.hasNext(); ) {
+				Map.Entry<Long, Mark> pair = it.next();
+				Mark mark = pair.getValue();
+				if (mark.binding != null) continue; // Таймер взведён уже в этом запуске
+				Binding<?> binding = plans.get(mark.plan);
+				if (binding == null) { it.remove(); live -= length(mark.at); continue; }
+				Timer timer = restore(binding, pair.getKey(), mark.at);
+				mark.binding = binding; binding.armed += length(mark.at);
+				waits.computeIfAbsent(timer.owner.conveyor, key -> new ArrayList<>())
+						.add(timer); }
+			for (Iterator<Map.Entry<Long, ArrayDeque<Integer>>> it =
+					items.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<Long, ArrayDeque<Integer>> pair = it.next();
+				@SuppressWarnings("unchecked")
+				Binding<Object> binding = (Binding<Object>)storages.get(pair.getKey());
+				if (binding == null) {
+					for (int at : pair.getValue()) live -= length(at);
+					it.remove(); continue; }
+				ArrayList<Object> list = new ArrayList<>(pair.getValue().size());
+				for (int at : pair.getValue()) list.add(binding.codec.decode(payload(at)));
+				@SuppressWarnings("unchecked")
+				Storage<Object> storage = (Storage<Object>)binding.target;
+				targets.add(storage); lists.add(list); }
+			plans.clear(); storages.clear();
+		} finally { unsync(); }
+		// Отдать восстановленное без блокировки журнала, хранилища журналируют под своей
+		for (Map.Entry<AConveyor, ArrayList<Waiting>> pair : waits.entrySet())
+			pair.getKey().append(pair.getValue());
+		for (int index = 0; index != targets.size(); ++index)
+			targets.get(index).restore(lists.get(index));
+	}
+
+	/** Попросить фоновый поток уплотнить журнал: переписать живые записи в новый файл.
+	 * Метод не ждёт уплотнения. */
+	@Synchronized public void compact() {
+		try { sync(); _wake(WantCompact); } finally { unsync(); } }
+
+	/** Попросить фоновый поток сбросить журнал на диск, чтобы он пережил и падение системы.
+	 * Метод не ждёт диска, кроме того фоновый поток сбрасывает журнал каждый период. */
+	@Synchronized public void flush() {
+		try { sync(); _wake(WantFlush); } finally { unsync(); } }
+
+	/** Число живых таймеров журнала. */
+	@Synchronized public int timers() {
+		try { sync(); return timers.size(); } finally { unsync(); } }
+
+	/** Остановить фоновый поток. Он доделает начатую подмену файла, сбросит журнал на диск,
+	 * закроет и снимет отображения файлов. После закрытия записи в журнал невозможны. */
+	@Synchronized @Override public void close() throws IOException {
+		try { sync(); if (!push(Closed)) return; } finally { unsync(); }
+		LockSupport.unpark(keeper);
+		boolean interrupted = false;
+		while (keeper.isAlive()) try { keeper.join(); }
+		catch (InterruptedException ex) { interrupted = true; }
+		if (interrupted) Thread.currentThread().interrupt(); }
+
+
+
+//======== Binding : привязка задач и хранилищ ===========================================//
+	/** Привязка задачи или хранилища к журналу под постоянным номером. */
+	static final class Binding<Target> {
+		final Journal journal;
+		final long    id;
+		final Object  target;
+		@Nullable final Codec<Target> codec;
+		/** Задача завершилась, её таймеры больше не нужны. */
+		volatile boolean finished;
+		/** Размер живых записей таймеров задачи, меняется под блокировкой журнала. */
+		long armed;
+
+		private Binding(Journal journal, long id, Object target, Codec<Target> codec) {
+			this.journal = journal; this.id     = id   ;
+			this.target  = target ; this.codec  = codec; }
+	}
+
+	/** Кодек элементов хранилища или целей отложенных таймеров для записи в журнал. */
+	public interface Codec<Target> {
+		@NotNull byte[] encode(Target target);
+		Target decode(@NotNull ByteBuffer data);
+	}
+
+	@Synchronized <Target> Binding<Target> bind( long id, @NotNull Plan<Target> plan,
+			@Nullable Codec<Target> codec ) {
+		Binding<Target> result = new Binding<>(this, id, plan, codec);
+		try { sync(); if (empty(Replayed)) plans.put(id, result); } finally { unsync(); }
+		return result; }
+
+	@Synchronized <Target> Binding<Target> bind( long id, @NotNull Storage<Target> storage,
+			@NotNull Codec<Target> codec ) {
+		Binding<Target> result = new Binding<>(this, id, storage, codec);
+		try { sync(); if (empty(Replayed)) storages.put(id, result); } finally { unsync(); }
+		return result; }
+
+
+
+//======== Records : запись событий в журнал =============================================//
+	/** Таймер взведён или перевзведён. Отложенный таймер пишется вместе со своей целью. */
+	@SuppressWarnings("unchecked")
+	@Synchronized void arm(@NotNull Timer timer) {
+		Binding<?> binding = timer.durable;
+		byte[] payload = timer instanceof Deferred ? ((Binding<Object>)binding).codec
+				.encode(((Deferred<?>)timer).target) : null;
+		try { sync();
+			if (timer.serial == 0) timer.serial = ++serial;
+			int length = ArmSize + (payload != null ? payload.length : 0);
+			int at = reserve(length);
+			memory.putLong(at + 1, timer.serial).putLong(at + 9, binding.id)
+					.putInt(at + 17, timer.stage).put(at + 21, (byte)timer.type().ordinal())
+					.putLong(at + 22, timer.instant).putInt(at + 30, timer.range)
+					.putInt(at + 34, payload != null ? payload.length : -1);
+			if (payload != null) put(at + ArmSize, payload);
+			memory.put(at, Arm); // Тип записи пишется последним и публикует её
+			Mark mark = timers.get(timer.serial);
+			if (mark != null) { length -= length(mark.at); mark.at = at; }
+			else timers.put(timer.serial, new Mark(at, binding.id, binding));
+			live += length; binding.armed += length;
+		} catch (IOException ex) { throw new UncheckedIOException(ex);
+		} finally { unsync(); } }
+
+	/** Таймер сработал последний раз или отменён. */
+	@Synchronized void done(@NotNull Timer timer) {
+		if (timer.serial == 0) return;
+		try { sync();
+			Mark mark = timers.remove(timer.serial);
+			if (mark == null) return;
+			int length = length(mark.at); // До reserve(), пока запись ещё в текущем файле
+			live -= length;
+			if (mark.binding != null) mark.binding.armed -= length;
+			int at = reserve(ShortSize);
+			memory.putLong(at + 1, timer.serial).put(at, Done);
+		} catch (IOException ex) { throw new UncheckedIOException(ex);
+		} finally { unsync(); } }
+
+	/** Задача завершилась, все её таймеры выбрасываются. */
+	@Synchronized void finish(@NotNull Binding<?> binding) {
+		binding.finished = true;
+		try { sync();
+			// Сами таймеры выбросит ближайшее уплотнение
+			live -= binding.armed; binding.armed = 0;
+			int at = reserve(ShortSize);
+			memory.putLong(at + 1, binding.id).put(at, Finish);
+		} catch (IOException ex) { throw new UncheckedIOException(ex);
+		} finally { unsync(); } }
+
+	/** Элемент положен в хранилище. Вызывается под блокировкой хранилища, поэтому порядок
+	 * записей совпадает с порядком очереди хранилища. */
+	@Synchronized <Target> void push(@NotNull Binding<Target> binding, Target target) {
+		byte[] payload = binding.codec.encode(target);
+		try { sync();
+			int at = reserve(PushSize + payload.length);
+			memory.putLong(at + 1, binding.id).putInt(at + 9, payload.length);
+			put(at + PushSize, payload);
+			memory.put(at, Push);
+			items.computeIfAbsent(binding.id, key -> new ArrayDeque<>()).offer(at);
+			live += PushSize + payload.length;
+		} catch (IOException ex) { throw new UncheckedIOException(ex);
+		} finally { unsync(); } }
+
+	/** Элемент извлечён из хранилища, также под блокировкой хранилища. */
+	@Synchronized void take(@NotNull Binding<?> binding) {
+		try { sync();
+			ArrayDeque<Integer> queue = items.get(binding.id);
+			Integer head = queue != null ? queue.poll() : null;
+			if (head == null) return;
+			live -= length(head); // До reserve(), пока запись ещё в текущем файле
+			int at = reserve(ShortSize);
+			memory.putLong(at + 1, binding.id).put(at, Take);
+		} catch (IOException ex) { throw new UncheckedIOException(ex);
+		} finally { unsync(); } }
+
+	/** Прочитать журнал и собрать живые записи. Завершение задачи гасит только те её
+	 * таймеры, которые взведены раньше записи о завершении. */
+	@Naive private final void load() throws IOException {
+		HashMap<Long, Integer> finished = new HashMap<>();
+		int at = Header, limit = memory.limit();
+		while (at < limit) {
+			byte type = memory.get(at);
+			if (type == 0) break;
+			long key = memory.getLong(at + 1);
+			switch (type) {
+			case Arm: Mark mark = timers.get(key);
+				if (mark == null) timers.put(key, new Mark(at, memory.getLong(at + 9), null));
+				else mark.at = at;
+				if (serial < key) serial = key;
+				break;
+			case Done  : timers.remove(key); break;
+			case Finish: finished.put(key, at); break;
+			case Push  : items.computeIfAbsent(key, k -> new ArrayDeque<>()).offer(at); break;
+			case Take  : ArrayDeque<Integer> queue = items.get(key);
+				if (queue != null) queue.poll();
+				break;
+			default: throw new IOException("Journal is corrupted at " + at); }
+			at += length(at); }
+		position = at;
+		if (!finished.isEmpty()) timers.values().removeIf( mark -> {
+			Integer finish = finished.get(mark.plan);
+			return finish != null && mark.at < finish; } );
+		for (Mark mark : timers.values()) live += length(mark.at);
+		for (ArrayDeque<Integer> queue : items.values())
+			for (int item : queue) live += length(item);
+	}
+
+	/** Занять место под запись. Когда файл заполнен на три четверти, фоновый поток
+	 * получает просьбу уплотнить журнал. Если места нет совсем, то журнал сразу
+	 * переключается на запасной файл, а если и тот не готов, то ждёт фоновый поток. */
+	@Naive private final int reserve(int length) throws IOException {
+		if (exist(Closed)) throw new ClosedChannelException();
+		if (position + length > memory.limit() && !_swap(length)) {
+			need = length;
+			do { _wake(WantSpare); unsync(); LockSupport.parkNanos(this, Pause); sync();
+				if (exist(Closed)) throw new ClosedChannelException();
+			} while (position + length > memory.limit() && !_swap(length)); }
+		int at = position; position += length;
+		int limit = memory.limit();
+		if (position > limit - (limit >> 2)) _wake(WantCompact);
+		return at; }
+
+	/** Поднять просьбу к фоновому потоку и разбудить его. */
+	@Naive private final void _wake(int want) { if (push(want)) LockSupport.unpark(keeper); }
+
+	/** Уплотнить журнал в запасной файл и переключиться на него. Это только перенос живых
+	 * записей из памяти в память, старый файл закроет и подменит фоновый поток.
+	 * @param extra — сколько места нужно под запись, ради которой идёт уплотнение;
+	 * @return false — запасного файла нет или живые записи в него не помещаются. */
+	@Naive private final boolean _swap(int extra) {
+		MappedByteBuffer target = spare;
+		if (target == null || retired != null) return false;
+		// Счётчик не меньше настоящего размера: таймеры завершённых задач уже вычтены
+		if (live + extra > target.limit()) return false;
+		int to = Header;
+		for (Iterator<Mark> it = timers.values().iterator(); it.hasNext(); ) {
+			Mark mark = it.next();
+			// Единственный полный проход заодно выбрасывает таймеры завершённых задач
+			if (mark.binding != null && mark.binding.finished) { it.remove(); continue; }
+			int at = mark.at; mark.at = to;
+			to = copy(target, at, to); }
+		for (ArrayDeque<Integer> queue : items.values())
+			for (int count = queue.size(); count != 0; --count) {
+				queue.offer(to); to = copy(target, queue.poll(), to); }
+		target.putInt(0, Magic); // Подпись делает новый файл главным для open()
+		retiredChannel = channel; retired = memory;
+		channel = spareChannel; memory = target; position = to; live = to;
+		spareChannel = null; spare = null; need = 0;
+		_wake(WantSpare);
+		return true; }
+
+
+
+//======== Keeper : фоновый поток файлового ввода-вывода =================================//
+	/** Цикл фонового потока: подменить старый файл, подготовить запасной, уплотнить
+	 * и сбросить журнал по просьбе или по истечении периода. */
+	private void run() {
+		long periodic = System.currentTimeMillis() + period;
+		while (true) try {
+			int want;
+			try { sync();
+				if (exist(Closed)) break;
+				want = mask(Wanted); take(Wanted);
+			} finally { unsync(); }
+			long now = System.currentTimeMillis();
+			boolean regular = now >= periodic;
+			if (regular) periodic = now + period;
+			else if (want == 0) { LockSupport.parkUntil(this, periodic); continue; }
+
+			retire(); prepare();
+			if ((want & WantCompact) != 0 || regular) {
+				boolean swapped;
+				try { sync();
+					// Периодическое уплотнение нужно, только если мёртвых записей больше живых
+					swapped = ((want & WantCompact) != 0 || position > live << 1)
+							&& _swap(0);
+				} finally { unsync(); }
+				if (swapped) { retire(); prepare(); } }
+			if ((want & WantFlush) != 0 || regular) force();
+		} catch (IOException | RuntimeException ex) {
+			log.fault("Journal background work failed", ex); }
+		shutdown(); }
+
+	/** Закрыть старый файл и снять его отображение, и только затем подменить им новый файл:
+	 * Windows не даёт заменить открытый или отображённый файл. */
+	@Stable private void retire() throws IOException {
+		FileChannel channel; MappedByteBuffer memory, current;
+		try { sync();
+			if ((memory = retired) == null) return;
+			channel = retiredChannel; current = this.memory;
+			retired = null; retiredChannel = null;
+		} finally { unsync(); }
+		channel.close(); unmap(memory);
+		current.force(); // Данные нового файла на диске раньше его имени
+		Files.move( next, path, StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING ); }
+
+	/** Создать и отобразить запасной файл, если его нет или он мал для живых записей.
+	 * Файл растёт вдвое, если живые записи занимают больше его половины. */
+	@Stable private void prepare() throws IOException {
+		FileChannel dropChannel; MappedByteBuffer drop;
+		long size = capacity, live;
+		try { sync();
+			live = this.live + need;
+			if (spare != null && spare.limit() >= live << 1 || retired != null) return;
+			dropChannel = spareChannel; drop = spare;
+			spareChannel = null; spare = null;
+		} finally { unsync(); }
+		if (drop != null) { dropChannel.close(); unmap(drop); }
+		while (size < live << 1) size <<= 1;
+		if (size > Integer.MAX_VALUE) throw new IOException("Journal is too large");
+
+		FileChannel channel = FileChannel.open( next, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE );
+		MappedByteBuffer target;
+		try { target = channel.map(FileChannel.MapMode.READ_WRITE, 0, size); }
+		catch (IOException | RuntimeException ex) { channel.close(); throw ex; }
+		try { sync(); spareChannel = channel; spare = target; } finally { unsync(); } }
+
+	/** Сбросить текущий файл на диск. Отображения снимает только этот поток, поэтому
+	 * взятое под блокировкой отображение живо всё время сброса. */
+	@Stable private void force() {
+		MappedByteBuffer memory;
+		try { sync(); memory = this.memory; } finally { unsync(); }
+		memory.force(); }
+
+	/** Завершение фонового потока: доделать подмену, сбросить и закрыть все файлы. */
+	@Stable private void shutdown() {
+		try { retire(); }
+		catch (IOException | RuntimeException ex) { log.fault("Journal retire failed", ex); }
+		FileChannel channel, spareChannel; MappedByteBuffer memory, spare;
+		try { sync();
+			channel = this.channel; memory = this.memory;
+			spareChannel = this.spareChannel; spare = this.spare;
+			this.memory = null; this.spare = null; this.spareChannel = null;
+		} finally { unsync(); }
+		try {
+			memory.force(); channel.close(); unmap(memory);
+			if (spare != null) { spareChannel.close(); unmap(spare);
+				Files.deleteIfExists(next); }
+		} catch (IOException | RuntimeException ex) {
+			log.fault("Journal close failed", ex); } }
+
+	/** Файл существует и подписан как журнал. */
+	private static boolean isJournal(Path path) throws IOException {
+		if (!Files.exists(path) || Files.size(path) < Header) return false;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(4);
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+			return !buffer.hasRemaining() && buffer.getInt(0) == Magic; } }
+
+	/** Снять отображение файла сразу, не дожидаясь сборщика мусора. На Java 8 это делает
+	 * очиститель самого буфера, начиная с Java 9 — {@code Unsafe.invokeCleaner}. Неудача
+	 * не страшна, тогда отображение снимет сборщик мусора. */
+	private static void unmap(@Nullable MappedByteBuffer buffer) {
+		if (buffer == null) return;
+		try {
+			unsafe.getClass().getMethod("invokeCleaner", ByteBuffer.class)
+					.invoke(unsafe, buffer);
+		} catch (NoSuchMethodException ex) { try {
+			java.lang.reflect.Method method = buffer.getClass().getMethod("cleaner");
+			method.setAccessible(true);
+			Object cleaner = method.invoke(buffer);
+			if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+		} catch (ReflectiveOperationException | RuntimeException ignore) { }
+		} catch (ReflectiveOperationException | RuntimeException ignore) { } }
+
+
+
+//======== Service : чтение, уплотнение и разбор записей =================================//
+	@Naive private final int copy(MappedByteBuffer target, int at, int to) {
+		int length = length(at);
+		ByteBuffer source = memory.duplicate();
+		source.position(at).limit(at + length);
+		target.position(to); target.put(source);
+		return to + length; }
+
+	@Naive private final void put(int at, byte[] data) {
+		ByteBuffer target = memory.duplicate(); target.position(at); target.put(data); }
+
+	/** Данные записи, цель таймера или элемент хранилища. */
+	@Naive private final ByteBuffer payload(int at) {
+		int begin, length;
+		if (memory.get(at) == Arm) { begin = at + ArmSize; length = memory.getInt(at + 34); }
+		else { begin = at + PushSize; length = memory.getInt(at + 9); }
+		ByteBuffer result = memory.duplicate();
+		result.position(begin).limit(begin + length);
+		return result.slice(); }
+
+	@Naive private final int length(int at) { switch (memory.get(at)) {
+		case Arm : return ArmSize  + Math.max(0, memory.getInt(at + 34));
+		case Push: return PushSize + memory.getInt(at + 9);
+		default  : return ShortSize; } }
+
+	/** Пересоздать таймер по записи журнала. */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Naive private final Timer restore(Binding<?> binding, long serial, int at) {
+		Plan<?> plan = (Plan<?>)binding.target;
+		int stage = memory.getInt(at + 17);
+		Timer.Type type = Timer.Type.values()[memory.get(at + 21)];
+		long instant = memory.getLong(at + 22);
+		int  range   = memory.getInt(at + 30);
+		Timer result = memory.getInt(at + 34) < 0 || binding.codec == null
+				? new Timer(plan, type, stage, instant, range)
+				: new Deferred(plan, type, binding.codec.decode(payload(at)), stage, instant,
+						range);
+		result.serial = serial;
+		return result; }
+
+	/** Живой таймер: позиция его последней записи и задача-владелец. */
+	private static final class Mark {
+		int at;
+		final long plan;
+		/** Привязка задачи, null — таймер прочитан из журнала и ещё не восстановлен. */
+		@Nullable Binding<?> binding;
+
+		Mark(int at, long plan, Binding<?> binding) {
+			this.at = at; this.plan = plan; this.binding = binding; }
+	}
+
+
+
+//======== Constants : формат журнала ====================================================//
+	private static final int Magic  = 0x534A524E; // SJRN
+	private static final int Header = 16;
+
+	/** Взвод таймера: номер, задача, этап, тип, момент, интервал, длина цели и цель. */
+	private static final byte Arm    = 1;
+	/** Таймер отработал или отменён: номер таймера. */
+	private static final byte Done   = 2;
+	/** Элемент положен в хранилище: номер хранилища, длина и данные элемента. */
+	private static final byte Push   = 3;
+	/** Первый элемент извлечён из хранилища: номер хранилища. */
+	private static final byte Take   = 4;
+	/** Задача завершилась: номер задачи. */
+	private static final byte Finish = 5;
+
+	private static final int ArmSize   = 38;
+	private static final int PushSize  = 13;
+	private static final int ShortSize =  9;
+
+	/** Период обслуживания по умолчанию. */
+	private static final int  Minute = 60_000;
+	/** Пауза записи, которая ждёт запасной файл, в наносекундах. */
+	private static final long Pause  = 100_000;
+
+	protected static final int fin = ABasketSync.fin-5;
+	/** Журнал уже восстановлен в конвейер, новые привязки не запоминаются. */
+	private static final int Replayed    = 1<<fin+1;
+	/** Журнал закрыт, фоновый поток завершается. */
+	private static final int Closed      = 1<<fin+2;
+	/** Просьбы к фоновому потоку: уплотнить журнал, подготовить запасной файл, сбросить
+	 * журнал на диск. */
+	private static final int WantCompact = 1<<fin+3;
+	private static final int WantSpare   = 1<<fin+4;
+	private static final int WantFlush   = 1<<fin+5;
+	private static final int Wanted      = WantCompact|WantSpare|WantFlush;
+}
@@ -0,0 +1,105 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import org.senjo.annotation.*;
+import org.senjo.support.Log;
+
+/** Хранилище последних значений (схлопывающее). Каждое значение имеет ключ, который
+ * вычисляет пользовательская функция. Новое значение подменяет ещё не обработанное старое
+ * с тем же ключом прямо на его месте в очереди, так задача видит каждый изменённый ключ
+ * только один раз за разбор. Объём работы задачи зависит от числа разных ключей, а не
+ * от частоты обновлений. Подходит для потоков котировок и подобных данных, где важно
+ * только самое свежее значение.
+ * <p/>Во всём остальном ведёт себя как {@link Entry.Storage}: принадлежит одной задаче,
+ * встаёт в её очередь при появлении данных и вызывает указанный этап, пока данные есть.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public final class LatestStorage<Key, Target> extends Entry implements IEmployer<Target> {
+	private final Unit owner;
+	private final Function<? super Target, ? extends Key> keyOf;
+	/** Изменённые и ещё не обработанные значения в порядке первого изменения ключа. */
+	private final LinkedHashMap<Key, Target> pending = new LinkedHashMap<>();
+	/** Число обновлений, которые подменили собой необработанные значения. */
+	private long conflated;
+
+	public LatestStorage(Unit owner, int stage, Function<? super Target, ? extends Key> keyOf) {
+		this(owner, stage, keyOf, true); }
+	public LatestStorage( Unit owner, int stage, Function<? super Target, ? extends Key> keyOf,
+			boolean enabled ) {
+		super(KindStorage, stage);
+		this.owner = owner; this.keyOf = keyOf;
+		if (enabled) push(Enabled); }
+
+	public final void enable () {
+		try { sync();
+			if (push(Enabled) && !pending.isEmpty()) _wakeup();
+		} finally { unsync(); } }
+	public final void disable() { takeSync(Enabled); }
+
+	@Override int resume() {
+		try { sync();
+			if (exist(Enabled) && !pending.isEmpty()) return Unit.ApplyWork;
+			else { take(Queued); return Unit.ApplyNone; }
+		} finally { unsync(); } }
+
+	/** Ошибочные решения не имеют ключа и не могут ничего подменить, поэтому они только
+	 * пишутся в журнал. */
+	@Override public void signal(ITicket<Target> ticket) {
+		if (ticket.status().isSuccess) push(ticket.take());
+		else owner.conveyor.log.fault("LatestStorage skip failed ticket", ticket.error()); }
+
+	/** Положить новое значение. Если значение с тем же ключом ещё не обработано, то оно
+	 * будет заменено на новое. */
+	@Synchronized public void push(Target target) {
+		Key key = keyOf.apply(target);
+		try { sync();
+			if (pending.put(key, target) != null) ++conflated;
+			else _wakeup();
+		} finally { unsync(); } }
+
+	/** Забрать самое давнее изменённое значение или {@code null}, если изменений нет. */
+	@Synchronized public Target take() {
+		try { sync();
+			Iterator<Map.Entry<Key, Target>> iterator = pending.entrySet().iterator();
+			if (!iterator.hasNext()) return null;
+			Target result = iterator.next().getValue();
+			iterator.remove();
+			return result;
+		} finally { unsync(); } }
+
+	/** Забрать необработанное значение указанного ключа. */
+	@Synchronized public Target remove(Key key) {
+		try { sync(); return pending.remove(key); } finally { unsync(); } }
+
+	/** Число изменённых ключей, ожидающих обработки. */
+	@Synchronized public int size() {
+		try { sync(); return pending.size(); } finally { unsync(); } }
+
+	/** Сколько всего обновлений было схлопнуто, т.е. не дошло до обработки. */
+	@Synchronized public long conflated() {
+		try { sync(); return conflated; } finally { unsync(); } }
+
+	@Naive private final void _wakeup() {
+		if (state(Queued, Enabled)) { push(Queued); owner.appendEntryAndPushQueue(this); } }
+
+	@Override boolean print(Log.Buffer out) { out.add("entry Latest"); return true; }
+
+
+
+	protected static final int fin = Entry.fin-2;
+	/** Хранилище включено для обработки. */
+	private static final int Enabled = 1<<fin+1;
+	/** Хранилище лежит в очереди задачи или в настоящий момент обрабатывается. */
+	private static final int Queued  = 1<<fin+2;
+}
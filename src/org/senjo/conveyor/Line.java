@@ -33,6 +33,9 @@ class Line extends Thread {
 	/** Объект визуального наблюдения за работой конвейерной линии. Если не null, то в него
 	 * передаются все изменения состояния конвейерной линии и вся её жизнедеятельность. */
 	             @Nullable LineView   view    ;
+	/** Личные полосы накопителей {@link Stripes} данной линии, индекс — номер накопителя.
+	 * Массив меняет и читает только сама линия. */
+	             @Nullable Object[]   stripes ;
 
 //	@Nullable final AutoCloseable resources;
 
@@ -100,14 +103,20 @@ class Line extends Thread {
 //		}
 //	}
 
-	final int process(Plan plan, Entry entry) {
+	final int process(Plan<?> plan, Entry entry) {
 		if (entry.isOverride()) return entry.inwork(this); // Системное вхождение
+		return process(plan, entry, entry.stage); }
+
+	/** Обработать этап задачи от имени вхождения. Системное вхождение, которое само не
+	 * является вхождением этапа, но хочет вызвать пользовательский обработчик, вызывает
+	 * этот метод напрямую. Режим {@link Plan#WorkMode} соблюдается в обоих случаях. */
+	final int process(Plan<?> plan, Entry entry, int stage) {
 		LineView view = this.view;
 		int result;
 		try {
 			if (view != null) view.load();
 			result = (plan.basket&Plan.WorkMode) == 0
-					? plan.work(entry.stage) : plan.do_work(entry);
+					? plan.work(stage) : plan.do_work(entry);
 			if (view != null) view.core();
 		} catch (Throwable error) {
 			if (view != null) view.core();
@@ -28,6 +28,9 @@ public final class MultiConveyor extends AConveyor {
 		super(name, new ArrayDeque<>(128), log);
 		lines = new Line[lineCount]; }
 
+	/** Наибольшее число исполнительных линий конвейера. */
+	public int width() { return lines.length; }
+
 	@Synchronized @Override public MultiConveyor priority(int priority) { try { sync();
 		this.priority = (byte)priority;
 		for (Line line : lines) if (line != null) line.setPriority(priority);
@@ -0,0 +1,78 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import org.senjo.annotation.*;
+import org.senjo.support.Log;
+
+/** Вынос блокирующего этапа задачи в отдельный эластичный конвейер ввода-вывода. Линии
+ * вычислительного конвейера по числу ядер не должны простаивать на блокирующих вызовах,
+ * поэтому такой этап исполняется линией другого конвейера, а задача на это время
+ * замораживается в своём домашнем конвейере.
+ * <p/>Вхождение работает в две фазы. В первой фазе оно обрабатывается в домашнем конвейере:
+ * замораживает задачу и регистрируется ресурсом этапа, а после полного окончания обработки
+ * закрывается механизмом {@link Task#StageClean} и только тогда отправляет этап в конвейер
+ * ввода-вывода. Так этап никогда не исполняется одновременно с домашней обработкой. Во второй
+ * фазе вхождение с результатом этапа ставится в голову цепочки, задача размораживается
+ * и возвращается в домашний конвейер, где результат этапа применяется штатно: вызовы
+ * этапов, завершение задачи и т.п.
+ * <p/>Конвейер ввода-вывода по умолчанию общий, его линии создаются по мере надобности,
+ * до {@value #Width} штук. Линии общего конвейера — демоны и не держат JVM, а сам он, как
+ * и любой конвейер, зарегистрирован в {@link Father} и завершается вместе со всеми
+ * конвейерами методом {@link Conveyor#shutdownAll()}.
+ * <p/>Команда {@link Unit#$Repeat$} этапа снова проводит вхождение через обе фазы, т.е.
+ * этап ещё раз исполняется в конвейере ввода-вывода.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+final class Offload extends Entry implements AutoCloseable {
+	/** Наибольшее число линий общего конвейера ввода-вывода. */
+	static final int Width = 256;
+	private static volatile AConveyor shared;
+
+	private final Task<?>   owner;
+	private final AConveyor target;
+	/** Результат этапа, исполненного в конвейере ввода-вывода. */
+	private int command;
+
+	Offload(@NotNull Task<?> owner, @NotNull AConveyor target, int stage) {
+		super(KindOffload, stage);
+		this.owner = owner; this.target = target; }
+
+	/** Общий эластичный конвейер ввода-вывода, создаётся при первом обращении. */
+	static AConveyor shared() {
+		AConveyor result = shared;
+		if (result == null) synchronized (Offload.class) {
+			if ((result = shared) == null)
+				shared = result = new MultiConveyor("Offload", Width).daemon(true); }
+		return result; }
+
+	@Override int inwork(Line line) {
+		if (existSync(Sent)) { // Вторая фаза, применить результат этапа
+			if (!Unit.isRepeat(command)) return command;
+			takeSync(Sent); } // Повтор этапа заново проходит первую фазу
+		owner.pushMask(Unit.Frozen);
+		owner.watchIn(this);
+		return Unit.$Default$; }
+
+	/** Домашняя обработка первой фазы полностью окончена, можно отдавать этап. */
+	@Override public void close() { if (pushSync(Sent)) target.execute(this::run); }
+
+	/** Исполнение этапа линией конвейера ввода-вывода и возврат задачи домой. */
+	private void run() {
+		command = Line.current().process(owner, this, stage);
+		Unit next = owner.importEntryAndQueue(this, Unit.Frozen);
+		if (next != null) owner.conveyor.push(next); }
+
+	@Override boolean print(Log.Buffer out) { out.add("entry Offload"); return true; }
+
+	protected static final int fin = Entry.fin-1;
+	/** Первая фаза пройдена, этап отправлен в конвейер ввода-вывода. Следующая обработка
+	 * вхождения применяет результат этапа. */
+	private static final int Sent = 1<<fin+1;
+}
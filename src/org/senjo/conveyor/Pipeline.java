@@ -0,0 +1,352 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import org.senjo.annotation.*;
+import org.senjo.basis.ABasketSync;
+
+/** Декларативный многоэтапный конвейер обработки (pipeline). Каждый шаг (map, filter,
+ * flatMap, batch, sink) исполняется заданным числом задач-работников в указанном
+ * конвейере, а соседние шаги соединены ограниченными очередями.
+ * <p/>Обратное давление работает само: если очередь следующего шага заполнена, работник
+ * не блокирует линию, а откладывает результат и засыпает, пока следующий шаг не заберёт
+ * элемент. Пока работник ждёт места, он не берёт новых элементов, поэтому переполнение
+ * распространяется назад до самого входа, где {@link #offer(Object)} вернёт false.
+ * <p/>Каждый шаг сам считает число обработанных элементов и время их обработки, снимок
+ * возвращает {@link #metrics()}. Исключение пользовательской функции теряет только свой
+ * элемент и учитывается в метриках шага, работник продолжает разбор очереди.
+ * <p/>Пример: {@code Pipeline.<String>source(1024).map(conveyor, 4, String::trim)
+ * .filter(conveyor, 1, s -> !s.isEmpty()).sink(conveyor, 2, out::println)}.
+ * Конвейер нужно полностью построить до подачи первого элемента.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public final class Pipeline<In, Out> {
+	private final Chain chain;
+
+	private Pipeline(Chain chain) { this.chain = chain; }
+
+	/** Начать построение конвейера обработки.
+	 * @param capacity — ёмкость очереди перед каждым шагом. */
+	public static <Item> Pipeline<Item, Item> source(int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive");
+		return new Pipeline<>(new Chain(capacity)); }
+
+	/** Преобразовать каждый элемент. Результат null отбрасывается. */
+	public <Next> Pipeline<In, Next> map( @NotNull AConveyor conveyor, int parallelism,
+			@NotNull Function<? super Out, ? extends Next> function ) {
+		return append(new Step(Kind.Map, function, 0, 0), conveyor, parallelism); }
+
+	/** Пропустить дальше только элементы удовлетворяющие условию. */
+	public Pipeline<In, Out> filter( @NotNull AConveyor conveyor, int parallelism,
+			@NotNull Predicate<? super Out> predicate ) {
+		return append(new Step(Kind.Filter, predicate, 0, 0), conveyor, parallelism); }
+
+	/** Развернуть каждый элемент в последовательность элементов. */
+	public <Next> Pipeline<In, Next> flatMap( @NotNull AConveyor conveyor, int parallelism,
+			@NotNull Function<? super Out, ? extends Iterable<? extends Next>> function ) {
+		return append(new Step(Kind.FlatMap, function, 0, 0), conveyor, parallelism); }
+
+	/** Собрать элементы в пачки. Пачка уходит дальше, когда набрано size элементов или
+	 * когда работник простоял без новых элементов linger миллисекунд.
+	 * @param size — размер полной пачки;
+	 * @param linger — предельная задержка неполной пачки, 0 — ждать полную пачку. */
+	public Pipeline<In, List<Out>> batch( @NotNull AConveyor conveyor, int parallelism,
+			int size, int linger ) {
+		if (size < 1) throw new IllegalArgumentException("Batch size must be positive");
+		return append(new Step(Kind.Batch, null, size, linger), conveyor, parallelism); }
+
+	/** Последний шаг, потребить каждый элемент. */
+	public Pipeline<In, Void> sink( @NotNull AConveyor conveyor, int parallelism,
+			@NotNull Consumer<? super Out> consumer ) {
+		return append(new Step(Kind.Sink, consumer, 0, 0), conveyor, parallelism); }
+
+	/** Подать элемент на вход конвейера обработки.
+	 * @return false — очередь первого шага заполнена или конвейер закрыт, элемент
+	 *         не принят. */
+	public boolean offer(@NotNull In item) { return head().offer(item); }
+
+	/** Подать элемент на вход, при необходимости дождаться места. Ожидание занимает поток,
+	 * поэтому из этапа задачи лучше использовать {@link #offer(Object)}.
+	 * @throws IllegalStateException — конвейер обработки закрыт. */
+	public void push(@NotNull In item) {
+		Stage head = head();
+		while (!head.offer(item)) {
+			if (head.isClosed()) throw new IllegalStateException("Pipeline is closed");
+			Thread.yield(); } }
+
+	/** Снимок метрик всех шагов в порядке их следования. */
+	public List<Metrics> metrics() {
+		ArrayList<Metrics> result = new ArrayList<>(chain.stages.size());
+		long now = System.nanoTime();
+		for (Stage stage : chain.stages) result.add(new Metrics(stage, now));
+		return Collections.unmodifiableList(result); }
+
+	/** Завершить всех работников конвейера обработки. Элементы в очередях теряются,
+	 * новые элементы больше не принимаются. */
+	public void close() { for (Stage stage : chain.stages) stage.close(); }
+
+	private final Stage head() {
+		if (chain.stages.isEmpty()) throw new IllegalStateException("Pipeline has no steps");
+		return chain.stages.get(0); }
+
+	private final <Next> Pipeline<In, Next> append(Step step, AConveyor conveyor,
+			int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be positive");
+		ArrayList<Stage> stages = chain.stages;
+		if (!stages.isEmpty() && stages.get(stages.size()-1).step.kind == Kind.Sink)
+			throw new IllegalStateException("Pipeline is already closed by sink");
+		Stage stage = new Stage(step, chain.capacity, stages.size());
+		if (!stages.isEmpty()) stages.get(stages.size()-1).next = stage;
+		stages.add(stage);
+		for (int index = 0; index != parallelism; ++index)
+			stage.idle(new Worker(conveyor, stage));
+		return new Pipeline<>(chain); }
+
+	/** Наибольшее число элементов, которое работник обрабатывает за один этап, прежде чем
+	 * уступить линию другим задачам. */
+	private static final int Burst = 64;
+
+	private enum Kind { Map, Filter, FlatMap, Batch, Sink }
+
+
+
+//======== Metrics : снимок метрик одного шага ==========================================//
+	public static final class Metrics {
+		/** Название шага: его номер с нуля и вид, например "0:map". */
+		public final String name;
+		/** Число обработанных элементов. */
+		public final long processed;
+		/** Сколько раз работники шага ждали места в очереди следующего шага. */
+		public final long blocked;
+		/** Число элементов, на которых функция шага бросила исключение. */
+		public final long failed;
+		/** Текущее число элементов в очереди шага. */
+		public final int  queued;
+		/** Среднее время обработки одного элемента в наносекундах. */
+		public final long latency;
+		/** Средняя пропускная способность в элементах в секунду с момента построения. */
+		public final double throughput;
+
+		private Metrics(Stage stage, long now) {
+			name = stage.index + ":" + stage.step.kind.name().toLowerCase();
+			processed = stage.processed.sum();
+			blocked   = stage.blocked  .sum();
+			failed    = stage.failed   .sum();
+			queued    = stage.size();
+			latency   = processed != 0 ? stage.nanos.sum() / processed : 0;
+			long elapsed = now - stage.created;
+			throughput = elapsed > 0 ? processed * 1e9 / elapsed : 0; }
+
+		@Override public String toString() {
+			return name + "{processed=" + processed + ", queued=" + queued + ", latency="
+					+ latency + "ns, throughput=" + (long)throughput + "/s, blocked="
+					+ blocked + ", failed=" + failed + '}'; }
+	}
+
+
+
+//======== Chain, Step : описание конвейера обработки ===================================//
+	private static final class Chain {
+		final int capacity;
+		final ArrayList<Stage> stages = new ArrayList<>();
+		Chain(int capacity) { this.capacity = capacity; }
+	}
+
+	private static final class Step {
+		final Kind   kind;
+		final Object function;
+		final int    size, linger;
+		Step(Kind kind, Object function, int size, int linger) {
+			this.kind = kind; this.function = function;
+			this.size = size; this.linger = linger; }
+
+		/** Обработать элемент, результаты сложить в очередь выпуска работника. */
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		void apply(Object item, Worker worker) {
+			switch (kind) {
+			case Map: {
+				Object result = ((Function)function).apply(item);
+				if (result != null) worker.pending.add(result);
+				break; }
+			case Filter:
+				if (((Predicate)function).test(item)) worker.pending.add(item);
+				break;
+			case FlatMap:
+				for (Object result : (Iterable<?>)((Function)function).apply(item))
+					if (result != null) worker.pending.add(result);
+				break;
+			case Batch:
+				if (worker.batch == null) worker.batch = new ArrayList<>(size);
+				worker.batch.add(item);
+				if (worker.batch.size() >= size) {
+					worker.pending.add(worker.batch); worker.batch = null; }
+				break;
+			case Sink:
+				((Consumer)function).accept(item);
+				break; }
+		}
+	}
+
+
+
+//======== Stage : ограниченная очередь шага и его работники ============================//
+	private static final class Stage extends ABasketSync {
+		final Step step;
+		final int  capacity, index;
+		final long created = System.nanoTime();
+		/** Следующий шаг или null для последнего шага. */
+		Stage next;
+
+		private final ArrayDeque<Object> queue = new ArrayDeque<>();
+		/** Работники шага, которым нечего делать. */
+		private final ArrayDeque<Worker> idle    = new ArrayDeque<>();
+		/** Работники предыдущего шага, которые ждут места в очереди. */
+		private final ArrayDeque<Worker> waiting = new ArrayDeque<>();
+		private final ArrayList<Worker>  workers = new ArrayList<>();
+
+		final LongAdder processed = new LongAdder();
+		final LongAdder nanos     = new LongAdder();
+		final LongAdder blocked   = new LongAdder();
+		final LongAdder failed    = new LongAdder();
+
+		Stage(Step step, int capacity, int index) {
+			this.step = step; this.capacity = capacity; this.index = index; }
+
+		@Synchronized boolean offer(Object item) {
+			try { sync();
+				if (exist(Closed) || queue.size() >= capacity) return false;
+				queue.offer(item);
+				Worker worker = idle.poll();
+				if (worker != null) { worker.idle = false; worker.wakeup(); }
+				return true;
+			} finally { unsync(); } }
+
+		/** Забрать элемент для работника. Если элементов нет, то работник засыпает до
+		 * появления нового элемента. Освободившееся место будит ждущего производителя. */
+		@Synchronized Object poll(Worker worker) {
+			try { sync();
+				Object result = queue.poll();
+				if (result == null) {
+					if (!worker.idle) { worker.idle = true; idle.push(worker); }
+					return null; }
+				Worker producer = waiting.poll();
+				if (producer != null) { producer.waiting = false; producer.wakeup(); }
+				return result;
+			} finally { unsync(); } }
+
+		/** Производитель не смог положить элемент в заполненную очередь.
+		 * @return true — место уже появилось, нужно повторить попытку; false —
+		 *         производитель будет разбужен, когда место появится, или шаг закрыт. */
+		@Synchronized boolean awaitRoom(Worker producer) {
+			try { sync();
+				if (exist(Closed)) return false;
+				if (queue.size() < capacity) return true;
+				if (!producer.waiting) { producer.waiting = true; waiting.offer(producer); }
+				return false;
+			} finally { unsync(); } }
+
+		@Synchronized void idle(Worker worker) {
+			try { sync();
+				workers.add(worker);
+				worker.idle = true; idle.push(worker);
+			} finally { unsync(); } }
+
+		@Synchronized int size() { try { sync(); return queue.size(); } finally { unsync(); } }
+
+		@Synchronized boolean isClosed() { return existSync(Closed); }
+
+		@Synchronized void close() {
+			ArrayList<Worker> workers;
+			try { sync();
+				push(Closed);
+				workers = new ArrayList<>(this.workers); this.workers.clear();
+			} finally { unsync(); }
+			for (Worker worker : workers) worker.call(Worker.$Close); }
+
+		private static final int fin = ABasketSync.fin-1;
+		/** Шаг закрыт и больше не принимает элементы. */
+		private static final int Closed = 1<<fin+1;
+	}
+
+
+
+//======== Worker : задача-работник шага ================================================//
+	private static final class Worker extends Task<Object> {
+		private final Stage stage;
+		/** Результаты, которые ещё не удалось положить в очередь следующего шага. */
+		final ArrayDeque<Object> pending = new ArrayDeque<>();
+		/** Неполная пачка шага batch. */
+		ArrayList<Object> batch;
+		/** Работник лежит в стеке простоя своего шага или в очереди ожидания места
+		 * следующего шага. Флаги меняются под синхронизацией соответствующего шага. */
+		boolean idle, waiting;
+		/** Заведённый таймер выпуска неполной пачки. */
+		private Entry.Timer linger;
+
+		Worker(AConveyor conveyor, Stage stage) { super(conveyor); this.stage = stage; }
+
+		void wakeup() { call($Run); }
+
+		@Override protected int work(int stage) { switch (stage) {
+		case $Run  : return run();
+		case $Flush:
+			linger = null;
+			if (batch != null && !batch.isEmpty()) { pending.add(batch); batch = null; }
+			flush(); return $Default$;
+		case $Close: return $Finish$;
+		default: return $Unknown$; } }
+
+		private int run() {
+			Stage stage = this.stage;
+			for (int burst = Burst; burst != 0; --burst) {
+				if (!flush()) return $Default$; // Ждём места в следующем шаге
+				Object item = stage.poll(this);
+				if (item == null) {
+					if (batch != null && linger == null && stage.step.linger > 0)
+						linger = delay(stage.step.linger, $Flush);
+					return $Default$; }
+				long start = System.nanoTime();
+				try { stage.step.apply(item, this); }
+				catch (RuntimeException ex) {
+					/* Сбой функции теряет только свой элемент. Если выпустить исключение из
+					 * этапа, то работник не окажется ни в простое, ни в ожидании места,
+					 * и его больше никто не разбудит */
+					stage.failed.increment();
+					log().fault("Pipeline step " + stage.index + " failed on item", ex);
+					continue; }
+				stage.nanos.add(System.nanoTime() - start);
+				stage.processed.increment(); }
+			return $Run; } // Уступить линию и продолжить в порядке очереди
+
+		/** Выпустить отложенные результаты в следующий шаг.
+		 * @return false — следующий шаг заполнен, работник будет разбужен позже. */
+		private boolean flush() {
+			Stage next = stage.next;
+			if (next == null) { pending.clear(); return true; }
+			Object item;
+			while ((item = pending.peek()) != null) {
+				if (next.offer(item)) { pending.poll(); continue; }
+				stage.blocked.increment();
+				if (!next.awaitRoom(this)) return false; }
+			return true; }
+
+		static final int $Run   = 1;
+		static final int $Flush = 2;
+		static final int $Close = 3;
+	}
+}
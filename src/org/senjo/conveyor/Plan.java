@@ -9,9 +9,17 @@ package org.senjo.conveyor;
 
 import static org.senjo.basis.Base.Illegal;
 import static org.senjo.basis.Text.text;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import org.senjo.annotation.*;
 import org.senjo.conveyor.Entry.*;
+import org.senjo.conveyor.SelectKeeper.Interest;
 
 /** Абстракция исполняемого элемента конвейера, который наследуется в Task, Work и др.
  * @param <Target> — тип связанной с сигналом структуры принимаемых данных.
@@ -19,10 +27,33 @@ import org.senjo.conveyor.Entry.*;
  * @author Denis Rezvyakov aka Dinya Feony Senjo
  * @version create 2017-10, change 2019-03-14, beta */
 @Synchronized public abstract class Plan<Target> extends Unit implements IEmployer<Target> {
+	/** Прядь, в которой задача исполняется строго по очереди с другими её членами. */
+	@Nullable Strand strand;
+	/** Привязка задачи к журналу, см. {@link #durable(Journal, long)}. */
+	@Nullable Journal.Binding<Target> durable;
+
 	Plan(@NotNull AConveyor conveyor) { super(conveyor); }
 
 	protected final boolean isShutdown() { return conveyor.isShutdown(); }
 
+	/** Вступить в прядь, задачи пряди никогда не исполняются одновременно. Вызывается
+	 * до запуска задачи, прядь должна принадлежать конвейеру задачи. */
+	protected final void strand(@Nullable Strand strand) {
+		if (strand != null && strand.conveyor != conveyor)
+			throw new IllegalArgumentException("Strand belongs to another conveyor");
+		this.strand = strand; }
+
+	/** Сделать таймеры задачи долговременными: их взвод и отмена пишутся в журнал, после
+	 * перезапуска они восстанавливаются {@link Journal#replay()}. Вызывается до запуска
+	 * задачи, номер задачи должен совпадать между запусками. Отложенные таймеры с целью
+	 * журналируются только с кодеком цели. */
+	protected final void durable(@NotNull Journal journal, long id) {
+		durable(journal, id, null); }
+
+	protected final void durable( @NotNull Journal journal, long id,
+			@Nullable Journal.Codec<Target> codec ) {
+		this.durable = journal.bind(id, this, codec); }
+
 	protected abstract int work(int stage) throws Exception;
 
 	/**
@@ -81,17 +112,43 @@ import org.senjo.conveyor.Entry.*;
 
 	/** Условно подписывается к сигналу квитка, если его ещё нет. Если сигналу уже есть,
 	 * то не подписывается и возвращает {@code false}.
+	 * Уже проваленный квиток, если ошибку не пропускать, доставляется этапом
+	 * {@link #$Signal} так же, как провальное решение по подписке: ошибку этап узнаёт
+	 * из квитка {@link #ticket()}.
 	 * @param ticket — квиток, к сигналу которого осуществляется подписка;
-	 * @return true, если сигнала ещё нет и подписка оформлена, в коде выполнение этапа
-	 *         можно прервать до срабатывания события сигнала; false, если сигнал уже есть,
-	 *         данные и так уже доступны, подписка не оформлена и этап этого сигнала
-	 *         в задаче не сработает. */
+	 * @param skipError — не доставлять уже выставленное провальное решение;
+	 * @return true, если сигнала ещё нет и подписка оформлена, либо провальное решение
+	 *         поставлено в очередь задачи, в коде выполнение этапа можно прервать
+	 *         до срабатывания события сигнала; false, если сигнал уже есть, данные и так
+	 *         уже доступны, подписка не оформлена и этап этого сигнала в задаче
+	 *         не сработает. */
 	protected final boolean await(ITicket<Target> ticket, boolean skipError) {
 		if (ticket.status().isComplete)
 			if (ticket.status().isSuccess || skipError) return false;
-			else throw Illegal("Пока не умею создавать ошибки по сигналу");
+			else { appendEntryAndPushQueue(new Reply<>(ticket)); return true; }
 		ticket.sign(this); return true; }
 
+	/** Условно подписывается к сигналу квитка с ограничением времени ожидания. Срок
+	 * заводится в хранителе времени конвейера и снимается автоматически при решении квитка.
+	 * Если решение не поступит в срок, то вместо {@link #$Signal} будет вызван этап
+	 * {@link #$Timeout}, в нём просроченный квиток возвращает {@link #expired()}, а поздний
+	 * сигнал квитка будет проигнорирован.
+	 * @param ticket — квиток, к сигналу которого осуществляется подписка;
+	 * @param millis — срок ожидания решения в миллисекундах;
+	 * @return аналогично {@link #await(ITicket)}. */
+	protected final boolean await(ITicket<Target> ticket, int millis) {
+		if (ticket.status().isComplete) return await(ticket);
+		Timeout<Target> timeout = new Timeout<>(this, ticket, millis);
+		conveyor.append(timeout);
+		ticket.sign(timeout); return true; }
+
+	/** Возвращает квиток, срок ожидания которого истёк, в этапе {@link #$Timeout}, иначе
+	 * null. Метод может вызываться только из потока обработки задачи. */
+	@SuppressWarnings("unchecked")
+	@Naive protected final ITicket<Target> expired() {
+		Entry entry = entryHead;
+		return entry instanceof Timeout ? ((Timeout<Target>)entry).ticket : null; }
+
 	/** Безусловно подписывается к сигналу, даже если он уже есть. Если сигнал уже есть,
 	 * то он сработает сразу.
 	 * @param ticket — квиток, к сигналу которого осуществляется подписка. */
@@ -103,22 +160,67 @@ import org.senjo.conveyor.Entry.*;
 	@Override public final void signal(ITicket<Target> ticket) {
 		conveyor.log.trace("Task: Поступил сигнал по квитку " + text(ticket));
 		Target target = ticket.take();
-		if (target != null || ticket.status().isSuccess)
-			appendEntryAndPushQueue(new Signal<>(target, $Signal));
-/*FIXME Из-за этого падает механизм сигналов, это должен быть стабильный метод,
- * а не швыряться ошибками! */
-		else throw new IllegalStateException( "Пока не умею обрабатывать ошибки по сигналу",
-				ticket.error() ); }
+		if (target != null || ticket.status().isSuccess) append(target, $Signal);
+		/* Провальное решение приходит тем же этапом с пустой целью мимо схлопывания, саму
+		 * ошибку этап узнаёт из квитка, который вернёт ticket() */
+		else appendEntryAndPushQueue(new Reply<>(ticket)); }
+
+	/** Возвращает квиток, решение которого доставлено текущим этапом {@link #$Signal},
+	 * иначе null. Так этап узнаёт ошибку провального решения, цель такого сигнала равна
+	 * null. Метод может вызываться только из потока обработки задачи. */
+	@SuppressWarnings("unchecked")
+	@Naive protected final ITicket<Target> ticket() {
+		Entry entry = entryHead;
+		if (entry instanceof Ticket) return (Ticket<Target>)entry;
+		if (entry instanceof Reply ) return ((Reply<Target>)entry).ticket;
+		return null; }
 
 	protected final void handle(Target target, int stage) {
 		conveyor.log.trace( "Task: Сигнал задаче " + text(this) + " для обработки "
 				+ text(target) );
+		append(target, stage); }
+
+	/** Включает схлопывание сигналов указанного этапа. Все сигналы этапа поступившие через
+	 * {@link #handle(Object, int)} или {@link #signal(ITicket)}, пока этап ждёт своей
+	 * очереди, собираются в одну пачку. Этап вызывается один раз на пачку и должен
+	 * разобрать её методом {@link #targets()}. Так горячий агрегатор обрабатывает один
+	 * этап на всплеск сигналов вместо этапа на каждый сигнал. */
+	@Synchronized protected final void coalesce(int stage) {
+		getExtension().coalesce(stage); pushSyncª(Coalesced); }
+
+	@Synchronized private final void append(Target target, int stage) {
+		if (existSyncª(Coalesced)) {
+			Batch<?> batch = getExtension().batch(stage);
+			if (batch != null) { batch.add(target); return; } }
 		appendEntryAndPushQueue(new Entry.Signal<>(target, stage)); }
 
+	/** Добавляет в задачу готовое вхождение сигнала без создания нового, например сам
+	 * квиток {@link Ticket}. Схлопываемый этап получит только цель сигнала. */
+	@Synchronized final void append(Signal<? extends Target> signal) {
+		if (existSyncª(Coalesced)) {
+			Batch<?> batch = getExtension().batch(signal.stage);
+			if (batch != null) { batch.add(signal.target); return; } }
+		appendEntryAndPushQueue(signal); }
+
+	/** Создаёт обещание результата задачи для внешнего кода на {@link CompletableFuture}.
+	 * Задача сама выставляет его решение, обработчики завершения будут исполнены в конвейере
+	 * задачи, а не в потоке выставившем решение. */
+	protected final <Result> Promise<Result> promise() { return new Promise<>(this); }
+
 	/** Возвращает текущую обрабатываемую цель, по которой пришёл сигнал.
 	 * Метод может вызываться только из потока обработки задачи. */
 	@Naive protected final Target target() { return targetEx(); }
 
+	/** Возвращает все текущие цели этапа. Для схлопнутого этапа (см. {@link #coalesce(int)})
+	 * это вся пачка накопленных сигналов, для обычного — единственная цель сигнала. Так
+	 * этап можно писать одинаково независимо от режима схлопывания.
+	 * Метод может вызываться только из потока обработки задачи. */
+	@SuppressWarnings("unchecked")
+	@Naive protected final Iterable<Target> targets() {
+		Entry entry = entryHead;
+		if (entry instanceof Batch) return ((Batch<Target>)entry).drain();
+		return Collections.singletonList(targetEx()); }
+
 	@SuppressWarnings("unchecked")
 	@Naive protected final <Type extends Target> Type targetEx() {
 		Entry entry = entryHead;
@@ -128,6 +230,57 @@ import org.senjo.conveyor.Entry.*;
 
 
 
+//======== Select : ожидание готовности каналов ввода-вывода =============================//
+
+	/** Дождаться готовности неблокирующего канала. Линия при этом не занимается: при
+	 * готовности канала задаче будет вызван этап stage, в котором интерес с готовыми
+	 * операциями вернёт {@link #selected()}. Интерес одноразовый, для следующего ожидания
+	 * его нужно заявить снова. Новый интерес к тому же каналу вытесняет прежний, и тот
+	 * срабатывает с пустой готовностью.
+	 * @param ops — набор операций {@link SelectionKey#OP_READ} и т.п.;
+	 * @throws java.nio.channels.IllegalBlockingModeException — канал в блокирующем
+	 *         режиме. */
+	protected final Interest select(@NotNull SelectableChannel channel, int ops, int stage)
+			throws IOException {
+		return conveyor.selector().await(this, channel, ops, stage); }
+
+	/** Возвращает сработавший интерес к каналу в этапе {@link #select(SelectableChannel,
+	 * int, int)}, иначе null. Метод может вызываться только из потока обработки задачи. */
+	@Naive protected final Interest selected() {
+		Entry entry = entryHead;
+		return entry instanceof Interest ? (Interest)entry : null; }
+
+
+
+//======== File : асинхронный файловый ввод-вывод ========================================//
+
+	/** Начать асинхронное чтение файла в буфер из пула конвейера. Решение операции придёт
+	 * этапом stage, в котором его вернёт {@link #completed()}. */
+	protected final FileIo read(@NotNull AsynchronousFileChannel channel, long position,
+			int stage) {
+		BufferPool pool = conveyor.buffers();
+		return FileIo.read(this, channel, pool.take(), pool, position, stage); }
+
+	/** Начать асинхронное чтение файла в указанный буфер задачи.
+	 * @see #read(AsynchronousFileChannel, long, int) */
+	protected final FileIo read( @NotNull AsynchronousFileChannel channel,
+			@NotNull ByteBuffer buffer, long position, int stage ) {
+		return FileIo.read(this, channel, buffer, null, position, stage); }
+
+	/** Начать асинхронную запись буфера в файл. Решение операции придёт этапом stage,
+	 * в котором его вернёт {@link #completed()}. */
+	protected final FileIo write( @NotNull AsynchronousFileChannel channel,
+			@NotNull ByteBuffer buffer, long position, int stage ) {
+		return FileIo.write(this, channel, buffer, position, stage); }
+
+	/** Возвращает решённую файловую операцию в её этапе, иначе null. Метод может
+	 * вызываться только из потока обработки задачи. */
+	@Naive protected final FileIo completed() {
+		Entry entry = entryHead;
+		return entry instanceof FileIo ? (FileIo)entry : null; }
+
+
+
 //======== Timer : таймеры пробуждения задачи ============================================//
 
 	/** Создать таймер задержки исполнения. По истечении указанного интервала будет вызван
@@ -239,8 +392,10 @@ import org.senjo.conveyor.Entry.*;
 
 //======== Basket constants : флажки для корзинки фруктов ================================//
 //	protected static final int fin = ABasketSync.fin;
-	static final int finª = Unit.finª-1;
-	static final int WorkMode = 1<<finª+1;
+	static final int finª = Unit.finª-2;
+	static final int WorkMode  = 1<<finª+1;
+	/** Задача схлопывает сигналы хотя бы одного этапа, см. {@link #coalesce(int)}. */
+	static final int Coalesced = 1<<finª+2;
 }
 
 
@@ -0,0 +1,77 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.util.concurrent.CompletableFuture;
+import org.senjo.annotation.*;
+import org.senjo.support.Log;
+
+/** Обещание результата задачи для внешнего кода построенного на {@link CompletableFuture}.
+ * Решение, выставленное из любого потока, не применяется сразу, а доставляется в цепочку
+ * задачи владельца системным вхождением. Т.о. все обработчики завершения, подписанные
+ * до решения, исполняются в линии конвейера задачи, а не в потоке выставившем решение,
+ * и могут без синхронизации читать состояние задачи.
+ * <p/>Если задача уже завершена, то решение применяется сразу в вызывающем потоке.
+ * Обработчики подписанные после решения, как и у любого {@link CompletableFuture},
+ * исполняются в потоке подписки. Отмена {@link #cancel(boolean)} применяется сразу.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public class Promise<Target> extends CompletableFuture<Target> {
+	private final Plan<?> owner;
+
+	/** @param owner — задача, в конвейере которой будут исполняться обработчики. */
+	public Promise(@NotNull Plan<?> owner) { this.owner = owner; }
+
+	public Plan<?> owner() { return owner; }
+
+	/** Выставить успешное решение. Решение будет применено в конвейере задачи.
+	 * @return false, если обещание уже было решено; true не гарантирует, что применено
+	 *         будет именно это решение. */
+	@Override public boolean complete(Target target) { return resolve(target, null); }
+
+	/** Выставить провальное решение. Решение будет применено в конвейере задачи. */
+	@Override public boolean completeExceptionally(@NotNull Throwable error) {
+		return resolve(null, error); }
+
+	private final boolean resolve(Target target, Throwable error) {
+		if (isDone()) return false;
+		if (owner.existSyncª(Unit.Finished)) return apply(target, error);
+		owner.appendEntryAndPushQueue(new Completion<>(this, target, error));
+		/* Задача могла завершиться в момент добавления и выбросить вхождение, повторное
+		 * применение того же решения безвредно */
+		if (owner.existSyncª(Unit.Finished)) apply(target, error);
+		return true; }
+
+	private final boolean apply(Target target, Throwable error) {
+		return error == null ? super.complete(target) : super.completeExceptionally(error); }
+
+
+
+//======== Completion : системное вхождение применения решения ==========================//
+	private static final class Completion<Target> extends Entry {
+		private final Promise<Target> promise;
+		private final Target    target;
+		private final Throwable error ;
+
+		Completion(Promise<Target> promise, Target target, Throwable error) {
+			super(KindPromise, 0);
+			this.promise = promise; this.target = target; this.error = error; }
+
+		@Override int inwork(Line line) {
+			promise.apply(target, error); return Unit.$Default$; }
+
+		/** Задача завершилась раньше, чем дошла до вхождения. Метод вызывается линией
+		 * конвейера задачи уже вне её синхронизации (см. {@link Unit#finishEntries()}),
+		 * поэтому решение применяется на месте и обработчики исполняются в конвейере
+		 * задачи, как и обещано. */
+		@Override void onFinish() { promise.apply(target, error); }
+
+		@Override boolean print(Log.Buffer out) { out.add("entry Promise"); return false; }
+	}
+}
@@ -0,0 +1,164 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.senjo.annotation.*;
+import org.senjo.support.Log;
+
+/** Хранитель выборки — системный наблюдатель готовности каналов ввода-вывода, аналог
+ * {@link TimeKeeper} для {@link Selector}. Задачи заявляют интерес к готовности канала
+ * (чтение, запись, приём, соединение), а хранитель при наступлении готовности добавляет
+ * задаче вхождение указанного этапа. Так тысячи неблокирующих соединений обслуживаются
+ * несколькими линиями конвейера.
+ * <p/>В отличие от хранителя времени хранитель выборки не может занимать линию конвейера:
+ * ожидание выборки блокирует поток. Поэтому у него свой поток-демон, который только ждёт
+ * готовности и раздаёт вхождения, а вся работа с каналами идёт в этапах задач.
+ * <p/>Интерес одноразовый, как сигнал: сработав, он снимается с канала, и задача должна
+ * заявить его снова, когда снова будет ждать канал. На один канал действует только последний
+ * заявленный интерес, а вытесненный им интерес сразу срабатывает с пустой готовностью,
+ * чтобы его задача не уснула навсегда. Все изменения регистрации применяются потоком хранителя, т.к.
+ * регистрация канала в селекторе блокируется на время выборки.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public final class SelectKeeper implements AutoCloseable {
+	private final Selector selector;
+	private final Log      log;
+	/** Заявленные и отменённые интересы, ещё не применённые к селектору. */
+	private final ConcurrentLinkedQueue<Interest> changes = new ConcurrentLinkedQueue<>();
+
+	SelectKeeper(@NotNull AConveyor conveyor) throws IOException {
+		this.log = conveyor.log;
+		selector = Selector.open();
+		Thread thread = new Thread(this::run, "SelectKeeper «" + conveyor.name + '»');
+		thread.setDaemon(true);
+		thread.start(); }
+
+	/** Заявить интерес задачи к готовности канала. Канал должен быть в неблокирующем
+	 * режиме.
+	 * @param ops — набор операций {@link SelectionKey#OP_READ} и т.п.;
+	 * @param stage — этап задачи, который будет вызван при готовности канала.
+	 * @throws IllegalBlockingModeException — канал в блокирующем режиме. Проверяется сразу,
+	 *         иначе ошибку увидел бы только поток хранителя. */
+	Interest await( @NotNull Unit owner, @NotNull SelectableChannel channel, int ops,
+			int stage ) {
+		if (channel.isBlocking()) throw new IllegalBlockingModeException();
+		Interest result = new Interest(this, owner, channel, ops, stage);
+		change(result);
+		return result; }
+
+	/** Закрыть селектор и остановить поток хранителя. Каналы при этом не закрываются. */
+	@Override public void close() {
+		try { selector.close(); }
+		catch (IOException ex) { log.fault("SelectKeeper close failed", ex); } }
+
+	private final void change(Interest interest) {
+		changes.add(interest);
+		selector.wakeup(); }
+
+	/** Цикл потока хранителя: применить изменения, дождаться готовности, раздать
+	 * вхождения. */
+	private void run() {
+		while (selector.isOpen()) try {
+			Interest interest;
+			while ((interest = changes.poll()) != null) apply(interest);
+			selector.select();
+			Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+			while (iterator.hasNext()) {
+				SelectionKey key = iterator.next(); iterator.remove();
+				interest = (Interest)key.attachment();
+				if (interest == null) continue;
+				int ready;
+				try { ready = key.readyOps(); key.interestOps(0); }
+				catch (CancelledKeyException ex) { ready = 0; }
+				key.attach(null);
+				interest.fire(ready); }
+		} catch (ClosedSelectorException ex) { break;
+		} catch (Throwable error) { log.fault("Critical fail of SelectKeeper", error); }
+		log.debug("SelectKeeper is closed"); }
+
+	/** Применить изменение интереса к селектору, выполняется только потоком хранителя. */
+	@Naive private final void apply(Interest interest) {
+		SelectionKey key = interest.channel.keyFor(selector);
+		try {
+			if (interest.isCanceled()) {
+				if (key != null && key.attachment() == interest) {
+					key.attach(null); key.interestOps(0); }
+			} else if (key != null) {
+				Interest replaced = (Interest)key.attach(interest);
+				key.interestOps(interest.ops);
+				// Вытесненный интерес не теряется, его задача получит пустую готовность
+				if (replaced != null && replaced != interest) replaced.fire(0); }
+			else interest.channel.register(selector, interest.ops, interest);
+		} catch (ClosedChannelException | CancelledKeyException ex) {
+			// Канал закрыт: разбудить задачу с пустой готовностью, пусть разберётся сама
+			if (!interest.isCanceled()) interest.fire(0);
+		} catch (RuntimeException ex) {
+			/* Канал нельзя зарегистрировать, например его успели перевести в блокирующий
+			 * режим. Интерес не должен теряться, задача тоже получит пустую готовность */
+			log.fault("SelectKeeper can't register channel", ex);
+			if (!interest.isCanceled()) interest.fire(0); }
+	}
+
+
+
+//======== Interest : вхождение готовности канала ========================================//
+	/** Заявленный интерес задачи к готовности канала. При срабатывании становится
+	 * вхождением этапа задачи, в котором интерес доступен через {@link Plan#selected()}. */
+	public static final class Interest extends Entry {
+		private final SelectKeeper      keeper;
+		private final Unit              owner;
+		private final SelectableChannel channel;
+		private final int               ops;
+		/** Готовые операции на момент срабатывания. */
+		private volatile int ready;
+
+		Interest( SelectKeeper keeper, Unit owner, SelectableChannel channel, int ops,
+				int stage ) {
+			super(KindCall, stage);
+			this.keeper  = keeper ; this.owner = owner;
+			this.channel = channel; this.ops   = ops  ; }
+
+		public SelectableChannel channel() { return channel; }
+		/** Готовые операции, 0 — канал закрыт или интерес отменён. */
+		public int readyOps() { return ready; }
+		public boolean isReadable   () { return (ready & SelectionKey.OP_READ   ) != 0; }
+		public boolean isWritable   () { return (ready & SelectionKey.OP_WRITE  ) != 0; }
+		public boolean isAcceptable () { return (ready & SelectionKey.OP_ACCEPT ) != 0; }
+		public boolean isConnectable() { return (ready & SelectionKey.OP_CONNECT) != 0; }
+
+		/** Отменить ещё не сработавший интерес.
+		 * @return false — интерес уже сработал, его вхождение отдано задаче. */
+		public boolean cancel() {
+			try { sync();
+				if (exist(Fired)) return false;
+				push(Fired|Canceled);
+			} finally { unsync(); }
+			keeper.change(this);
+			return true; }
+
+		final boolean isCanceled() { return existSync(Canceled); }
+
+		private final void fire(int ready) {
+			if (!pushSync(Fired)) return;
+			this.ready = ready;
+			owner.appendEntryAndPushQueue(this); }
+
+		@Override boolean print(Log.Buffer out) { out.add("entry Select"); return true; }
+
+		protected static final int fin = Entry.fin-2;
+		/** Интерес сработал, вхождение отдано задаче. */
+		private static final int Fired    = 1<<fin+1;
+		/** Интерес отменён задачей. */
+		private static final int Canceled = 1<<fin+2;
+	}
+}
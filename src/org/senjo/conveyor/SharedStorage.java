@@ -0,0 +1,181 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import static org.senjo.basis.Base.Illegal;
+
+import java.util.ArrayDeque;
+import org.senjo.annotation.*;
+import org.senjo.basis.ABasketSync;
+import org.senjo.conveyor.Entry.Storage.ErrorBox;
+import org.senjo.support.Log;
+
+/** Общее хранилище сигналов с конкурирующими потребителями. В отличие от
+ * {@link Entry.Storage}, которое принадлежит одной задаче, к общему хранилищу может
+ * подписаться множество задач. Каждый элемент достаётся ровно одному потребителю,
+ * а будятся только те спящие потребители, которых не хватает для разбора очереди. Так
+ * тяжёлый этап обработки может занять все линии {@link MultiConveyor} без ручного
+ * распределения данных между задачами.
+ * <p/>Каждая подписка — это отдельное вхождение {@link Consumer}, которое ведёт себя как
+ * обычное вхождение Storage: встаёт в очередь своей задачи и вызывает указанный этап. В этапе
+ * задача забирает элементы методом {@link Consumer#take()}. Если после этапа в хранилище
+ * ещё есть элементы, то потребитель снова встаёт в очередь, иначе засыпает.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+@SuppressWarnings("unchecked")
+public final class SharedStorage<Target> extends ABasketSync implements IEmployer<Target> {
+	private final ArrayDeque<Object> queue = new ArrayDeque<>();
+	/** Спящие потребители. Это стек: последний уснувший будет разбужен первым, пока у его
+	 * линии ещё тёплый кеш. */
+	private final ArrayDeque<Consumer<Target>> idle = new ArrayDeque<>();
+	/** Число потребителей, которые стоят в очереди своих задач или прямо сейчас
+	 * обрабатываются. */
+	private int busy;
+	/** Общее число подписанных потребителей. */
+	private int count;
+
+	/** Подписать задачу к хранилищу. Задача будет вызывать этап stage, пока в хранилище
+	 * есть для неё элементы.
+	 * @param owner — задача потребитель;
+	 * @param stage — этап задачи, который будет разбирать элементы хранилища;
+	 * @return вхождение подписки, через него задача забирает элементы и отписывается. */
+	@Synchronized public Consumer<Target> subscribe(@NotNull Unit owner, int stage) {
+		Consumer<Target> result = new Consumer<>(this, owner, stage);
+		try { sync();
+			++count;
+			result.turnFlag(Consumer.Idle, true);
+			idle.push(result);
+			_wakeup();
+		} finally { unsync(); }
+		return result; }
+
+	@Override public void signal(ITicket<Target> ticket) {
+		Object target;
+		switch (ticket.status()) {
+		case Ready: target = ticket.take(); break;
+		case Error: case Interrupted: target = new ErrorBox(ticket); break;
+		default: throw Illegal(ticket.status()); }
+
+		_syncPushAndWakeup(target);
+	}
+
+	/** Положить элемент в хранилище. Если свободных потребителей не хватает, то будет
+	 * разбужен ещё один спящий потребитель. */
+	public void push(Target target) { _syncPushAndWakeup(target); }
+
+	/** Забрать следующий элемент хранилища. Элементы с ошибкой пропускаются. Если
+	 * элементов нет, то возвращает {@code null}. */
+	@Synchronized public Target take() {
+		try { sync(); do {
+			Object target = queue.poll();
+			if (target instanceof ErrorBox) continue;
+			else return (Target)target;
+		} while (true); } finally { unsync(); } }
+
+	@Synchronized public int size() {
+		try { sync(); return queue.size(); } finally { unsync(); } }
+
+	/** Число подписанных к хранилищу потребителей. */
+	@Synchronized public int consumers() {
+		try { sync(); return count; } finally { unsync(); } }
+
+	@Synchronized private final void _syncPushAndWakeup(Object target) {
+		try { sync(); queue.offer(target); _wakeup(); } finally { unsync(); } }
+
+	/** Будит спящих потребителей, пока их меньше, чем элементов в очереди. Потребители
+	 * завершённых задач выбрасываются из подписки. */
+	@Naive private final void _wakeup() {
+		int size = queue.size();
+		while (busy < size) {
+			Consumer<Target> consumer = idle.poll();
+			if (consumer == null) return;
+			consumer.turnFlag(Consumer.Idle, false);
+			if (consumer.owner.existSyncª(Unit.Finished)) { --count; continue; }
+			// Задача могла завершиться только что, тогда вхождение не принято
+			if (!consumer.owner.offerEntry(consumer)) { --count; continue; }
+			++busy;
+			Log log = consumer.owner.conveyor.log;
+			if (log.isTrace()) log.traceEx("SharedStorage#wakeup: ").hashName(consumer.owner)
+					.add(", busy=").add(busy).add(", size=").add(size).end();
+		}
+	}
+
+	/** Вызывается задачей после обработки этапа потребителя. Если элементы ещё остались,
+	 * то потребитель остаётся в работе, иначе засыпает. */
+	@Synchronized private final int resume(Consumer<Target> consumer) {
+		try { sync();
+			if (consumer.isFlag(Consumer.Canceled)) {
+				// Ушедший потребитель освободил место, очередь разберут спящие
+				--busy; if (!queue.isEmpty()) _wakeup();
+				return Unit.ApplyNone; }
+			if (!queue.isEmpty()) return Unit.ApplyWork;
+			--busy;
+			consumer.turnFlag(Consumer.Idle, true);
+			idle.push(consumer);
+			return Unit.ApplyNone;
+		} finally { unsync(); } }
+
+	/** Задача потребителя завершилась, пока он был в работе: его resume() уже не будет
+	 * вызван, поэтому потребитель освобождает место сам и будит замену. */
+	@Synchronized private final void finish(Consumer<Target> consumer) {
+		try { sync();
+			if (consumer.isFlag(Consumer.Idle)) return;
+			--busy;
+			if (consumer.turnFlag(Consumer.Canceled, true)) --count;
+			if (!queue.isEmpty()) _wakeup();
+		} finally { unsync(); } }
+
+	@Synchronized private final void unsubscribe(Consumer<Target> consumer) {
+		try { sync();
+			if (!consumer.turnFlag(Consumer.Canceled, true)) return;
+			--count;
+			/* Спящего потребителя просто забываем; работающий сам уйдёт из очереди задачи
+			 * при ближайшем вызове resume() */
+			if (consumer.isFlag(Consumer.Idle)) idle.remove(consumer);
+			else if (!queue.isEmpty()) _wakeup();
+		} finally { unsync(); } }
+
+
+
+//======== Consumer : вхождение подписки задачи к общему хранилищу ======================//
+	/** Подписка одной задачи к общему хранилищу. Флаги вхождения меняются только внутри
+	 * синхронизации самого хранилища. */
+	public static final class Consumer<Target> extends Entry {
+		private final SharedStorage<Target> source;
+		private final Unit owner;
+
+		private Consumer(SharedStorage<Target> source, Unit owner, int stage) {
+			super(KindStorage, stage);
+			this.source = source; this.owner = owner; }
+
+		@Override int resume() { return source.resume(this); }
+
+		@Override void onFinish() { source.finish(this); }
+
+		/** Забрать следующий элемент общего хранилища или {@code null}, если их нет. */
+		public Target take() { return source.take(); }
+
+		/** Отписаться от общего хранилища. Текущая обработка, если она идёт, будет
+		 * завершена штатно, но больше этап вызываться не будет. */
+		public void cancel() { source.unsubscribe(this); }
+
+		public SharedStorage<Target> source() { return source; }
+
+		@Override boolean print(Log.Buffer out) { out.add("entry Shared"); return true; }
+
+		@Naive final boolean isFlag  (int mask) { return exist(mask); }
+		@Naive final boolean turnFlag(int mask, boolean state) { return turn(mask, state); }
+
+		protected static final int fin = Entry.fin-2;
+		/** Потребитель спит и лежит в стеке {@link SharedStorage#idle}. */
+		private static final int Idle     = 1<<fin+1;
+		/** Потребитель отписался от хранилища. */
+		private static final int Canceled = 1<<fin+2;
+	}
+}
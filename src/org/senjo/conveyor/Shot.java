@@ -0,0 +1,60 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+import org.senjo.annotation.*;
+
+/** Разовый выстрел — самая лёгкая единица конвейера для мелкой работы. В отличие от задачи
+ * не имеет ни этапов, ни цепочки вхождений, ни вызова {@link Entry.Call}: конвейер кладёт
+ * её в очередь, линия один раз исполняет действие и сразу берёт следующую единицу.
+ * Поэтому мелкая параллельная работа стоит немногим дороже места в очереди конвейера.
+ * <p/>Создаётся методами {@link AConveyor#execute(Runnable)} и
+ * {@link AConveyor#submit(Supplier)}. Это единственная реализация протокола линии для
+ * единиц без этапов: наследники, как команда {@link ConveyorExecutor}, меняют только
+ * крючки {@link #ready()}, {@link #failed(Throwable)} и {@link #done()}.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+class Shot<Target> extends Unit {
+	/** Действие: {@link Runnable} если квитанции нет, иначе {@link Supplier}. */
+	final Object action;
+	@Nullable private final Ticket<Target> ticket;
+
+	Shot(AConveyor conveyor, @NotNull Runnable action) { super(conveyor);
+		this.action = action; this.ticket = null; }
+
+	Shot(AConveyor conveyor, @NotNull Supplier<? extends Target> action,
+			@NotNull Ticket<Target> ticket) { super(conveyor);
+		this.action = action; this.ticket = ticket; }
+
+	@SuppressWarnings("unchecked")
+	@Override final Unit process(Line line) {
+		if (ready()) {
+			line.load();
+			try {
+				if (ticket == null) ((Runnable)action).run();
+				else ticket.complete(((Supplier<? extends Target>)action).get());
+				line.core();
+			} catch (Throwable error) { line.core(); failed(error); } }
+		done();
+		return conveyor.swap(null); }
+
+	/** Исполнять ли действие, false — выстрел отменён и только отдаёт линию. */
+	boolean ready() { return true; }
+
+	/** Действие завершилось ошибкой, вызывается уже после возврата линии в ядро. */
+	void failed(Throwable error) {
+		if (ticket != null) ticket.fail( error instanceof Exception
+				? (Exception)error : new ExecutionException(error) );
+		else conveyor.log.fault("Shot failed", error); }
+
+	/** Выстрел отработал или пропущен, линия ещё не отдана следующей единице. */
+	void done() { }
+}
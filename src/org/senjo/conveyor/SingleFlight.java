@@ -0,0 +1,65 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import org.senjo.annotation.*;
+
+/** Схлопывание одинаковых запросов (single-flight). Пока вычисление по ключу идёт, все
+ * повторные запросы того же ключа получают тот же квиток и подписываются к нему обычным
+ * {@link Plan#await(ITicket)}. Так нагрузка на поставщика сводится к одному вычислению
+ * на ключ в каждый момент времени, а результат получают все заказчики обычным сигналом.
+ * <p/>Результат не кешируется: как только вычисление решено, ключ забывается и следующий
+ * запрос запустит новое вычисление.
+ * <p/>Пример: {@code if (await(flight.request(key))) return $Default$;}
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public final class SingleFlight<Key, Target> {
+	private final ConcurrentHashMap<Key, Ticket<Target>> flights = new ConcurrentHashMap<>();
+	private final Function<? super Key, ? extends ITicket<Target>> loader;
+
+	/** @param loader — запуск вычисления по ключу, возвращает квиток его решения. */
+	public SingleFlight(@Nullable Function<? super Key, ? extends ITicket<Target>> loader) {
+		this.loader = loader; }
+
+	/** Запросить результат по ключу стандартным вычислителем. */
+	public ITicket<Target> request(@NotNull Key key) { return request(key, loader); }
+
+	/** Запросить результат по ключу. Если вычисление ключа уже идёт, то возвращается его
+	 * квиток, иначе запускается новое вычисление указанным вычислителем.
+	 * @param loader — запуск вычисления, вызывается только если вычисления ещё нет. */
+	public ITicket<Target> request( @NotNull Key key,
+			@NotNull Function<? super Key, ? extends ITicket<Target>> loader ) {
+		Ticket<Target> result = flights.get(key);
+		if (result != null) return result; // Быстрый путь присоединения к вычислению
+		Ticket<Target> ticket = new Ticket<>();
+		result = flights.putIfAbsent(key, ticket);
+		if (result != null) return result;
+
+		ITicket<Target> source;
+		try { source = loader.apply(key); }
+		catch (RuntimeException error) {
+			flights.remove(key, ticket); ticket.fail(error); return ticket; }
+		source.sign(solution -> {
+			flights.remove(key, ticket); // Забыть ключ до решения, поздние запросы начнут заново
+			if (solution.status().isSuccess) ticket.complete(solution.take());
+			else {
+				Exception error = solution.error();
+				ticket.fail(error != null ? error : new IllegalStateException(
+						"Ticket of key " + key + " failed without error" )); } });
+		return ticket; }
+
+	/** Забыть вычисление по ключу. Уже подписанные заказчики получат его решение, а новые
+	 * запросы запустят новое вычисление. */
+	public void forget(@NotNull Key key) { flights.remove(key); }
+
+	/** Число вычислений в работе. */
+	public int inflight() { return flights.size(); }
+}
@@ -0,0 +1,55 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.util.ArrayDeque;
+import org.senjo.annotation.*;
+import org.senjo.basis.ABasketSync;
+
+/** Прядь — последовательная группа задач. Задачи одной пряди конвейер исполняет строго
+ * по одной, поэтому они могут работать с общим состоянием без блокировок, при этом разные
+ * пряди и прочие задачи свободно исполняются параллельно на линиях {@link MultiConveyor}.
+ * <p/>В очередь конвейера попадает только один член пряди — активный. Остальные члены,
+ * которым поступила работа, ждут в очереди самой пряди и линий не занимают. Когда активный
+ * член заканчивает обработку вхождения, линия сразу передаёт эстафету следующему члену
+ * пряди, а если у активного работа ещё осталась, то он встаёт в конец очереди пряди,
+ * чтобы члены пряди исполнялись по очереди.
+ * <p/>Все члены пряди должны принадлежать её конвейеру. Задача вступает в прядь методом
+ * {@link Plan#strand(Strand)} до своего запуска.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public final class Strand extends ABasketSync {
+	final AConveyor conveyor;
+	/** Член пряди, который сейчас стоит в очереди конвейера или исполняется. */
+	private Unit active;
+	/** Члены пряди с работой, ждущие своей очереди. */
+	private final ArrayDeque<Unit> ready = new ArrayDeque<>();
+
+	public Strand(@NotNull AConveyor conveyor) { this.conveyor = conveyor; }
+
+	/** Допустить члена пряди в очередь конвейера.
+	 * @return true — прядь свободна, член стал активным и его нужно положить в очередь
+	 *         конвейера; false — член встал в очередь пряди. */
+	@Synchronized boolean admit(@NotNull Unit member) { try { sync();
+		if (active == null) { active = member; return true; }
+		ready.add(member); return false;
+	} finally { unsync(); } }
+
+	/** Активный член закончил обработку вхождения.
+	 * @param again — у члена осталась работа, его нужно снова поставить в очередь;
+	 * @return следующий активный член пряди, который линия должна отдать конвейеру вместо
+	 *         завершившего, или null, если работы в пряди больше нет. */
+	@Synchronized Unit leave(@NotNull Unit member, boolean again) { try { sync();
+		if (again) ready.add(member);
+		return active = ready.poll();
+	} finally { unsync(); } }
+
+	/** Число членов пряди, ждущих своей очереди. */
+	@Synchronized public int waiting() { try { sync(); return ready.size(); } finally { unsync(); } }
+}
@@ -0,0 +1,175 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.Consumer;
+import org.senjo.annotation.*;
+import org.senjo.basis.ABasketSync;
+
+/** Полосатый накопитель — идея LongAdder применённая к сбору событий и статистики
+ * конвейера. Каждая конвейерная линия пишет в свою личную полосу без синхронизации,
+ * а задача-сборщик периодически или по требованию сливает все полосы разом. Так множество
+ * задач, которые отчитываются одному наблюдателю, не выстраиваются в очередь на цепочке
+ * вхождений этого наблюдателя.
+ * <p/>Полоса — это очередь с одним писателем (своей линией) и одним читателем (сборщиком),
+ * поэтому запись не требует ни блокировок, ни CAS. Потоки не являющиеся линиями
+ * конвейера пишут в общую полосу под синхронизацией.
+ * <p/>Если сборщик указан, то первая запись после очередного слива один раз ставит ему
+ * этап на исполнение, последующие записи до слива сборщика не трогают.
+ * <p/>Каждый экземпляр занимает ячейку в личном массиве полос каждой линии, которая в него
+ * писала. Закрытие {@link #close()} возвращает номер ячейки для следующих накопителей,
+ * поэтому массивы линий не растут от накопителей, которые уже не нужны.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public final class Stripes<Item> extends ABasketSync implements AutoCloseable {
+	/** Занятые номера ячеек, закрытые накопители освобождают свои номера. */
+	private static final BitSet indices = new BitSet();
+	/** Наибольший занятый номер ячейки плюс один, до него растут массивы линий. */
+	private static int limit;
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<Stripes> Pending =
+			AtomicIntegerFieldUpdater.newUpdater(Stripes.class, "pending");
+
+	/** Номер ячейки накопителя в массиве {@link Line#stripes} каждой линии. */
+	private final int index = allocate();
+	/** Все полосы линий, которые хотя бы раз писали в накопитель. */
+	@SuppressWarnings("unchecked")
+	private Stripe<Item>[] stripes = (Stripe<Item>[])new Stripe<?>[0];
+	/** Общая полоса для потоков, которые не являются линиями конвейера. */
+	private final Stripe<Item> common = new Stripe<>(this);
+
+	private final Unit collector;
+	private final int  stage;
+	/** Сборщику уже поставлен этап слива, повторно ставить не нужно. */
+	private volatile int pending;
+	/** Копия флага {@link #Closed} для записи без синхронизации. */
+	private volatile boolean closed;
+
+	/** Накопитель без сборщика, сливать полосы нужно вручную, например по таймеру. */
+	public Stripes() { this(null, 0); }
+
+	/** @param collector — задача-сборщик, ей будет вызван этап stage при появлении первой
+	 *        записи после очередного слива;
+	 * @param stage — этап сборщика, в котором он должен вызвать {@link #drain(Consumer)}. */
+	public Stripes(@Nullable Unit collector, int stage) {
+		this.collector = collector; this.stage = stage; }
+
+	/** Записать элемент в полосу текущей линии.
+	 * @throws IllegalStateException — накопитель закрыт. */
+	public void push(Item item) {
+		if (closed) throw new IllegalStateException("Stripes is closed");
+		Thread thread = Thread.currentThread();
+		if (thread instanceof Line) stripe((Line)thread).push(item);
+		else try { sync();
+			if (exist(Closed)) throw new IllegalStateException("Stripes is closed");
+			common.push(item);
+		} finally { unsync(); }
+
+		Unit collector = this.collector;
+		if (collector != null && pending == 0 && Pending.compareAndSet(this, 0, 1))
+			collector.appendEntryAndPushQueue(new Entry.Call(stage));
+	}
+
+	/** Слить все полосы: передать каждый накопленный элемент обработчику. Порядок
+	 * сохраняется только в пределах одной полосы.
+	 * @return число слитых элементов. */
+	@Synchronized public int drain(@NotNull Consumer<? super Item> handler) {
+		pending = 0; // Записи после этого момента снова разбудят сборщика
+		int count = 0;
+		try { sync();
+			for (Stripe<Item> stripe : stripes) count += stripe.drain(handler);
+			count += common.drain(handler);
+		} finally { unsync(); }
+		return count; }
+
+	/** Число линий, которые писали в накопитель. */
+	@Synchronized public int width() { try { sync(); return stripes.length; } finally { unsync(); } }
+
+	/** Закрыть накопитель и вернуть номер его ячейки. Не слитые элементы пропадают,
+	 * писать в закрытый накопитель нельзя. */
+	@Synchronized @Override public void close() {
+		try { sync(); if (!push(Closed)) return; closed = true; } finally { unsync(); }
+		synchronized (indices) { indices.clear(index); } }
+
+	private static int allocate() { synchronized (indices) {
+		int result = indices.nextClearBit(0);
+		indices.set(result);
+		if (limit <= result) limit = result + 1;
+		return result; } }
+
+	private static int limit() { synchronized (indices) { return limit; } }
+
+	/** Найти или создать полосу текущей линии. Массив полос линии меняет только сама линия,
+	 * поэтому синхронизация нужна только при регистрации новой полосы. Ячейка линии может
+	 * хранить полосу закрытого накопителя с тем же номером, такая полоса заменяется. */
+	@SuppressWarnings("unchecked")
+	private Stripe<Item> stripe(Line line) {
+		Object[] array = line.stripes;
+		if (array != null && index < array.length) {
+			Object result = array[index];
+			if (result != null && ((Stripe<?>)result).owner == this)
+				return (Stripe<Item>)result; }
+
+		if (array == null || index >= array.length)
+			line.stripes = array = Arrays.copyOf( array != null ? array : new Object[0],
+					Math.max(index + 1, limit()) );
+		Stripe<Item> result = new Stripe<>(this);
+		try { sync();
+			if (exist(Closed)) throw new IllegalStateException("Stripes is closed");
+			array[index] = result;
+			Stripe<Item>[] stripes = Arrays.copyOf(this.stripes, this.stripes.length + 1);
+			stripes[stripes.length-1] = result;
+			this.stripes = stripes;
+		} finally { unsync(); }
+		return result; }
+
+
+
+	protected static final int fin = ABasketSync.fin-1;
+	/** Накопитель закрыт, его номер ячейки может занять другой накопитель. */
+	private static final int Closed = 1<<fin+1;
+
+
+
+//======== Stripe : полоса, очередь с одним писателем и одним читателем =================//
+	private static final class Stripe<Item> {
+		/** Накопитель, которому принадлежит полоса. */
+		final Stripes<Item> owner;
+		/** Уже прочитанный узел, голова очереди. Меняет только читатель. */
+		private Node<Item> head;
+		/** Последний записанный узел. Меняет только писатель. */
+		private Node<Item> tail;
+
+		Stripe(Stripes<Item> owner) { this.owner = owner; head = tail = new Node<>(null); }
+
+		void push(Item item) {
+			Node<Item> node = new Node<>(item);
+			tail.next = node; // volatile запись публикует узел читателю
+			tail = node; }
+
+		int drain(Consumer<? super Item> handler) {
+			int count = 0;
+			Node<Item> node;
+			while ((node = head.next) != null) {
+				head = node;
+				Item item = node.item; node.item = null;
+				handler.accept(item);
+				++count; }
+			return count; }
+	}
+
+	private static final class Node<Item> {
+		Item item;
+		volatile Node<Item> next;
+		Node(Item item) { this.item = item; }
+	}
+}
@@ -47,9 +47,15 @@ public abstract class Task<Target> extends Plan<Target> {
 			apply = apply(apply, command, null);
 		} finally { unsyncª(); }
 		// Очистить помеченные Closeable ресурсы и активный служебный Lock
+		if ($Exist(apply,ApplyStop)) finishEntries();
 		if (system != null) system.onStage();
 		if ($Exist(apply,μEvent)) doEvent($Mask(apply,μEvent));
-		return conveyor.swap($Exist(apply,ApplySwap) ? this : null);
+		boolean again = $Exist(apply,ApplySwap);
+		// Долговременная задача завершилась, её оставшиеся таймеры журналу больше не нужны
+		if (durable != null && $Exist(apply,ApplyStop)) durable.journal.finish(durable);
+		// Член пряди сразу передаёт эстафету следующему члену вместо себя
+		if (strand != null) return conveyor.swap(strand.leave(this, again));
+		return conveyor.swap(again ? this : null);
 	}
 
 
@@ -62,6 +68,53 @@ public abstract class Task<Target> extends Plan<Target> {
 //	protected final Locker locker() { return new Locker(getExtension().lock); }
 	protected final ReentrantLock getLock() { return getExtension().lock; }
 
+	/** Захватить асинхронную блокировку до конца этапа, не занимая линию ожиданием.
+	 * @param stage — этап, который будет вызван под блокировкой, если её нельзя захватить
+	 *        сразу;
+	 * @return true — блокировка захвачена, этап может продолжить работу; false — задача
+	 *         встала в очередь блокировки, этап нужно завершить. */
+	protected final boolean lock(@NotNull AsyncLock lock, int stage) {
+		return lock.lock(this, stage); }
+	/** Досрочно освободить асинхронную блокировку или отказаться от её ожидания. */
+	protected final void unlock(@NotNull AsyncLock lock) { lock.unlock(this); }
+
+	/** Занять разрешение асинхронного семафора до конца этапа, не занимая линию ожиданием.
+	 * @return true — разрешение занято, этап может продолжить работу; false — задача
+	 *         встала в очередь семафора, этап нужно завершить, этап stage будет вызван
+	 *         после получения разрешения. */
+	protected final boolean acquire(@NotNull AsyncSemaphore semaphore, int stage) {
+		return semaphore.acquire(this, stage) != null; }
+
+	/** Взять объект асинхронного пула до конца этапа, не занимая линию ожиданием.
+	 * @return объект пула; null — задача встала в очередь пула, этап нужно завершить,
+	 *         в этапе stage объект выдаст {@link #leased(AsyncPool)}. */
+	@SuppressWarnings("unchecked")
+	protected final <Item> Item lease(@NotNull AsyncPool<Item> pool, int stage) {
+		AsyncSemaphore.Permit permit = pool.acquire(this, stage);
+		return permit != null ? (Item)permit.item : null; }
+
+	/** Возвращает объект пула, переданный задаче в этапе ожидания {@link #lease(AsyncPool,
+	 * int)}, иначе null. Метод может вызываться только из потока обработки задачи. */
+	@SuppressWarnings("unchecked")
+	@Naive protected final <Item> Item leased(@NotNull AsyncPool<Item> pool) {
+		Entry entry = entryHead;
+		return entry instanceof AsyncSemaphore.Permit
+				&& ((AsyncSemaphore.Permit)entry).isFrom(pool)
+				? (Item)((AsyncSemaphore.Permit)entry).item : null; }
+
+
+
+//======== Offload : вынос блокирующих этапов ============================================//
+	/** Исполнить блокирующий этап в общем эластичном конвейере ввода-вывода, чтобы
+	 * не занимать им линию своего конвейера. На время этапа задача замораживается, затем
+	 * возвращается в свой конвейер, где штатно применяется результат этапа. */
+	protected final void offload(int stage) { offload(Offload.shared(), stage); }
+
+	/** Исполнить блокирующий этап в указанном конвейере ввода-вывода.
+	 * @see #offload(int) */
+	protected final void offload(@NotNull AConveyor target, int stage) {
+		appendEntryAndPushQueue(new Offload(this, target, stage)); }
+
 
 
 //======== Closable : расширение автозакрытия ресурсов ===================================//
@@ -0,0 +1,160 @@
+/* Copyright 2019, Senjo Org. Denis Rezvyakov aka Dinya Feony Senjo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ */
+package org.senjo.conveyor;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import org.senjo.annotation.*;
+import org.senjo.basis.Text;
+import org.senjo.support.Config;
+import org.senjo.support.Log;
+
+/** Встроенный одноразовый квиток без блокировок. Решение выставляется один раз методами
+ * {@link #complete(Object)}, {@link #fail(Exception)} или {@link #cancel()}, все переходы
+ * состояния выполняются через CAS.
+ * <p/>Квиток сам является вхождением {@link Entry.Signal} этапа {@link Plan#$Signal}. Если
+ * квитка ждёт ровно одна задача (обычный случай {@link Plan#await(ITicket)}), то при успешном
+ * решении в её цепочку добавляется сам квиток, т.о. кроме самого квитка ничего не создаётся.
+ * Заказчика одиночки квиток хранит прямо в поле, цепочка узлов появляется только при
+ * нескольких заказчиках. Ошибочное решение и прочие заказчики получают обычный
+ * {@link IEmployer#signal(ITicket)}, задача принимает ошибку тем же этапом
+ * {@link Plan#$Signal}, а сам квиток ей вернёт {@link Plan#ticket()}.
+ * <p/>Решение хранится в полях самого квитка и публикуется одним CAS слова состояния
+ * {@link #state}, поэтому кроме самого квитка ничего не создаётся, а опоздавший подписчик
+ * сразу видит полное решение без ожидания. Поле {@link #waiters} хранит только заказчиков.
+ *
+ * @author Denis Rezvyakov aka Dinya Feony Senjo
+ * @version create 2019-11, alpha */
+public class Ticket<Target> extends Entry.Signal<Target> implements ITicket<Target> {
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<Ticket, Object> Waiters =
+			AtomicReferenceFieldUpdater.newUpdater(Ticket.class, Object.class, "waiters");
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<Ticket> State =
+			AtomicIntegerFieldUpdater.newUpdater(Ticket.class, "state");
+
+	/** Заказчики: null — нет заказчиков; IEmployer — единственный заказчик; Waiter — цепочка
+	 * заказчиков; {@link #Drained} — заказчики уже оповещены о решении. */
+	private volatile Object waiters;
+	/** Слово состояния: {@link #Open}, {@link #Resolving} или {@link #Resolved}. Запись
+	 * Resolved публикует поля решения {@link #status}, {@link #error} и цель вхождения. */
+	private volatile int state;
+	private Status    status;
+	private Exception error;
+
+	public Ticket() { super(null, Plan.$Signal); }
+
+	/** Создать сразу решённый квиток. */
+	public static <Target> Ticket<Target> of(Target target) {
+		Ticket<Target> result = new Ticket<>();
+		result.complete(target);
+		return result; }
+
+	/** Создать квиток, который будет решён вместе с указанным этапом {@link CompletionStage}.
+	 * Решение доставляется подписанной задаче обычным этапом {@link Plan#$Signal}, поэтому
+	 * внешнюю асинхронную библиотеку можно ждать методом {@link Plan#await(ITicket)}. */
+	public static <Target> Ticket<Target> from(@NotNull CompletionStage<Target> stage) {
+		Ticket<Target> result = new Ticket<>();
+		stage.whenComplete((target, error) -> {
+			if (error == null) { result.complete(target); return; }
+			if (error instanceof CompletionException && error.getCause() != null)
+				error = error.getCause();
+			if (error instanceof CancellationException) result.cancel();
+			else result.fail( error instanceof Exception ? (Exception)error
+					: new CompletionException(error) );
+		});
+		return result; }
+
+	@Override public Status status() {
+		if (state == Resolved) return status;
+		return waiters == null ? Status.None : Status.Awaiting; }
+
+	@Override public Target take() {
+		return state == Resolved && status == Status.Ready ? target : null; }
+
+	@Override public Exception error() { return state == Resolved ? error : null; }
+
+	@Override public void sign(@NotNull IEmployer<Target> employer) {
+		Object waiters;
+		do {
+			if (state == Resolved) { deliver(employer, true); return; }
+			waiters = this.waiters;
+			// Заказчики уже оповещены, значит решение опубликовано
+			if (waiters == Drained) { deliver(employer, true); return; }
+		} while (!Waiters.compareAndSet( this, waiters, waiters == null ? employer
+				: new Waiter<>(employer, waiters) )); }
+
+	/** Выставить успешное решение.
+	 * @return false, если решение уже было выставлено ранее. */
+	public boolean complete(Target target) { return resolve(target, null, Status.Ready); }
+
+	/** Выставить провальное решение. */
+	public boolean fail(@NotNull Exception error) {
+		return resolve(null, error, error instanceof InterruptedException
+				? Status.Interrupted : Status.Error); }
+
+	/** Отменить решение, заказчики получат состояние {@link Status#Interrupted}. */
+	public boolean cancel() { return fail(new InterruptedException("Ticket is canceled")); }
+
+	@SuppressWarnings("unchecked")
+	private final boolean resolve(Target target, Exception error, Status status) {
+		if (!State.compareAndSet(this, Open, Resolving)) return false;
+		this.target = target; this.error = error; this.status = status;
+		state = Resolved; // Публикация решения
+		// Заказчики, подписанные до публикации, забираются разом
+		Object waiters = Waiters.getAndSet(this, Drained);
+
+		if (waiters == null) return true;
+		if (!(waiters instanceof Waiter)) {
+			deliver((IEmployer<Target>)waiters, false); return true; }
+		// Цепочка собрана в обратном порядке, оповещаем в порядке подписки
+		Waiter<Target> chain = null;
+		for (Object item = waiters; item instanceof Waiter; ) {
+			Waiter<Target> node = (Waiter<Target>)item;
+			item = node.next; node.next = chain; chain = node;
+			if (!(item instanceof Waiter)) chain = new Waiter<>((IEmployer<Target>)item, chain); }
+		for (; chain != null; chain = (Waiter<Target>)chain.next)
+			deliver(chain.employer, true);
+		return true; }
+
+	/** Передать решение заказчику. Единственная ожидающая задача получает сам квиток
+	 * вхождением своей цепочки. Сбой одного заказчика только пишется в журнал, чтобы
+	 * остальные заказчики всё равно получили решение.
+	 * @param shared — квиток нельзя использовать вхождением: заказчиков несколько или
+	 *        подписка пришла после решения. */
+	@SuppressWarnings("unchecked")
+	private final void deliver(IEmployer<Target> employer, boolean shared) {
+		try {
+			if (!shared && employer instanceof Plan && status() == Status.Ready)
+				((Plan<Target>)employer).append(this);
+			else employer.signal(this);
+		} catch (Throwable ex) {
+			Log log = employer instanceof Unit ? ((Unit)employer).conveyor.log
+					: Config.log("conveyor");
+			log.fault("Ticket employer " + Text.text(employer) + " failed to take signal", ex);
+		} }
+
+	@Override boolean print(Log.Buffer out) { out.add("entry Ticket"); return true; }
+
+	private static final int Open      = 0;
+	/** Решение выставляется, поля решения ещё не опубликованы. */
+	private static final int Resolving = 1;
+	private static final int Resolved  = 2;
+	/** Метка в {@link #waiters}: заказчики забраны для оповещения о решении. */
+	private static final Object Drained = new Object();
+
+	private static final class Waiter<Target> {
+		final IEmployer<Target> employer;
+		Object next;
+		Waiter(IEmployer<Target> employer, Object next) {
+			this.employer = employer; this.next = next; }
+	}
+}
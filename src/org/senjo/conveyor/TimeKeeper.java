@@ -11,6 +11,7 @@ import static org.senjo.basis.Base.Illegal;
 import static org.senjo.basis.Helper.unsafe;
 import static org.senjo.basis.Text.*;
 
+import java.util.Collection;
 import java.util.PriorityQueue;
 import org.senjo.annotation.*;
 import org.senjo.basis.ABasketSync;
@@ -132,6 +133,21 @@ final class TimeKeeper extends Unit {
 		if (oldWakeup == 0 || newWakeup < oldWakeup) changeWakeup(newWakeup);
 	} finally { unsync(); } }
 
+	/** Добавить пачку таймеров за одну блокировку, например при восстановлении таймеров
+	 * из журнала. Хранитель переключает пробуждение один раз на ближайший из них.
+	 * <p/>Важно! Конвейер при вызове должен быть разблокирован, как и для одного таймера. */
+	@Synchronized(AConveyor.class) void push(@NotNull Collection<? extends Waiting> timers) {
+	try { sync();
+		if (timers.isEmpty()) return;
+		long newWakeup = Long.MAX_VALUE;
+		for (Waiting timer : timers) {
+			queue.offer(timer);
+			if (timer.instant < newWakeup) newWakeup = timer.instant; }
+		if (log.isDebug()) log.debug("keeper: Add " + timers.size() + " timers");
+		long oldWakeup = this.nextWakeup;
+		if (oldWakeup == 0 || newWakeup < oldWakeup) changeWakeup(newWakeup);
+	} finally { unsync(); } }
+
 	/** Досрочно извлечь указанный таймер из очереди ожидания.
 	 * <p/>Важно! Данный метод может вызывать синхронные методы конвейера, поэтому
 	 * при вызове данного метода конвейер должен быть разблокирован. */
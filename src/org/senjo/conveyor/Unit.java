@@ -46,6 +46,7 @@ import org.senjo.support.Log.Buffer;
 		case $Cancel$: // Cancel и Unknown находятся в одной группе Cancel
 			if ((command & 0x10000000) == 0) {    // Команда Cancel
 				if (entry.isKind(Entry.KindLoop)) ((Loop)entry).idle();
+				else if (entry instanceof Waiting) ((Waiting)entry).dropped();
 				return ApplyNone;
 			} else return identifyUnknown(entry); // Команда Unknown 
 		case $Repeat$: return ApplyWork; //XXX Реализовать или отказаться от подмены stage'а
@@ -115,18 +116,29 @@ import org.senjo.support.Log.Buffer;
 		return 0;
 	}
 
+	/** Отцепляет всю цепочку вхождений завершённой задачи. Сами вхождения узнают
+	 * о завершении позже в {@link #finishEntries()}, уже без блокировки задачи: их
+	 * onFinish() берёт блокировки хранилищ и будит чужие задачи, а под блокировкой задачи
+	 * это нарушило бы порядок блокировок «хранилище → задача». */
 	@Naive private final void applyStop() {
 		if (!pushª(Finished)) return;
-		Entry entry, head = entryHead, tail = entryTail;
-		if (head == null) head = tail;
-		else do { head = (entry=head).next; entry.next = null; } while (entry != tail);
+		finishing = entryHead != null ? entryHead : entryTail;
+		entryHead = entryTail = null;
+	}
+
+	/** Сообщает о завершении задачи всем вхождениям, отцепленным {@link #applyStop()}.
+	 * Вызывается после команды ApplyStop строго вне блокировки задачи. Рабочие вхождения
+	 * тоже должны узнать о завершении: подписки общих хранилищ и выданные разрешения
+	 * освобождают своё место. */
+	@Synchronized final void finishEntries() {
+		Entry entry, head;
+		try { syncª(); head = finishing; finishing = null; } finally { unsyncª(); }
 		while (head != null) {
 			head = (entry=head).next;
 			entry.next = null;
 /*FIXME Не-е-е! Не надо вызывать все пустышки onFinish. Проверить флаг CleanFinish
 * и если он есть, тогда найти вхождение расширения и почистить его. */
 			entry.onFinish(); }
-		entryHead = entryTail = null;
 	}
 
 	static final int ApplyNone =  0  ;
@@ -313,6 +325,10 @@ import org.senjo.support.Log.Buffer;
 	 * рабочее вхождения, если оно есть. */
 	Entry entryHead;
 
+	/** Цепочка вхождений завершённой задачи, которые ещё не узнали о завершении.
+	 * @see #finishEntries() */
+	private Entry finishing;
+
 	/** Последний рабочий элемент цепочки вхождений, которые должна обработать задача.
 	 * После данного вхождения идёт цепочка системных вхождений, которые обрабатываются
 	 * не наследником, а самим ядром. Если цепочка рабочих вхождений пуста, то данное
@@ -352,8 +368,9 @@ import org.senjo.support.Log.Buffer;
 			boolean processing = entryHead != null;
 			if (!processing && existª(Finished)) return false;
 			appendEntry(entry);
-			// Если вхождения уже были или был флаг Queued, то просто выходим
-			if (processing || !pushª(Queued)) return false;
+			/* Если вхождения уже были или был флаг Queued, то просто выходим. Замороженную
+			 * задачу в очередь вернёт только тот, кто её заморозил. */
+			if (processing || existª(Frozen) || !pushª(Queued)) return false;
 		} finally { unsyncª(); }
 		return true; // Добавить задачу если вхождений не было и флаг Queued удалось занять
 	}
@@ -367,6 +384,21 @@ import org.senjo.support.Log.Buffer;
 		if (appendEntryAndCheckQueue(entry)) conveyor.push(this);
 	}
 
+	/** Аналог {@link #appendEntryAndPushQueue(Entry)}, который сообщает, принято ли
+	 * вхождение. Нужен тем, кто передаёт задаче владение ресурсом и должен передать его
+	 * дальше, если задача уже завершена.
+	 * @return false — задача завершена, вхождение не добавлено в цепочку. */
+	@Synchronized final boolean offerEntry(@NotNull Entry entry) {
+		boolean push;
+		try { syncª();
+			boolean processing = entryHead != null;
+			if (!processing && existª(Finished)) return false;
+			appendEntry(entry);
+			push = !processing && emptyª(Frozen) && pushª(Queued);
+		} finally { unsyncª(); }
+		if (push) conveyor.push(this);
+		return true; }
+
 	/** Переключить текущее (верхнее) вхождение.
 	 * @param head — обрабатываемое первое вхождение в карусели, его достоверность
 	 *        не проверяется;
@@ -554,6 +586,8 @@ import org.senjo.support.Log.Buffer;
 	 * вхождение нужно не удаляя обработать ещё раз. Правда сейчас вхождение переставляется
 	 * в конец цепочки, но теоретически это не должно мешать логике исполнения задач. */
 	protected static final int $Repeat$   = 0x8000_0000; //1000.xxxx
+	/** Ответ метода обработки является командой {@link #$Repeat$}. */
+	static final boolean isRepeat(int command) { return (command & μCommand) == $Repeat$; }
 	/** Команда успешного штатного завершения работы задачи. Сигналы перестанут
 	 * обрабатываться, а задача будет помечена, как выполненная. */
 	protected static final int $Finish$   = 0xC000_0000; //1100.xxxx
@@ -588,6 +622,10 @@ import org.senjo.support.Log.Buffer;
 	 * Другой ответ продолжит её исполнение, пока однажды задача сама не отдаст ответ
 	 * {@link #$Finish}. */
 	protected static final int $Shutdown  = 0xC000_0005;
+	/** Стандартный stage истечения срока ожидания квитка, см.
+	 * {@link Plan#await(ITicket, int)}. Просроченный квиток возвращает
+	 * {@link Plan#expired()}. */
+	protected static final int $Timeout   = 0xC000_0006;
 
 
 
@@ -644,6 +682,7 @@ import org.senjo.support.Log.Buffer;
 		case $Signal  : return "$Signal"  ;
 		case $Timer   : return "$Timer"   ;
 		case $Shutdown: return "$Shutdown";
+		case $Timeout : return "$Timeout" ;
 		default: String result = substageName(stage);
 			return nullable || result != null ? result
 					: Integer.toHexString(stage).toUpperCase(); }